@@ -0,0 +1,162 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Delivers launcher-to-app callbacks from one dispatcher thread, so that the threads producing
+ * events (such as the OpenVPN status callback) never wait for a broadcast.
+ *
+ * Non-critical events are delivered in batches at most once per minimum interval, and an event
+ * with a coalescing key replaces any undelivered event with the same key (e.g. a VPN state that
+ * has already been superseded). Critical events are delivered right away, together with whatever
+ * is pending before them so that ordering is preserved.
+ */
+public class CallbackDispatcher<T> {
+    private static final String LOG_TAG = "CallbackDispatcher";
+
+    public static class Event<T> {
+        public final T payload;
+        // Events with the same non-null key supersede each other
+        public final String coalescingKey;
+        public final boolean isCritical;
+        public final long tPosted;
+
+        Event(T payload, String coalescingKey, boolean isCritical) {
+            this.payload = payload;
+            this.coalescingKey = coalescingKey;
+            this.isCritical = isCritical;
+            this.tPosted = System.currentTimeMillis();
+        }
+    }
+
+    public interface Sink<T> {
+        // Called on the dispatcher thread with events in posting order
+        void deliver(List<Event<T>> events);
+    }
+
+    private final Sink<T> sink;
+    private final long minInterval;
+    private final Thread thread;
+
+    // Guarded by this
+    private List<Event<T>> pending = new ArrayList<Event<T>>();
+    private boolean hasCritical = false;
+    private boolean isShutdown = false;
+    private long tLastDelivery = 0;
+    private long postedCount = 0;
+    private long coalescedCount = 0;
+    private long batchCount = 0;
+
+    /**
+     * @param minInterval minimum time between two deliveries of non-critical events
+     */
+    public CallbackDispatcher(Sink<T> sink, long minInterval) {
+        this.sink = sink;
+        this.minInterval = minInterval;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchLoop();
+            }
+        }, "CallbackDispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void post(T payload, String coalescingKey) {
+        enqueue(new Event<T>(payload, coalescingKey, false));
+    }
+
+    public void postCritical(T payload) {
+        enqueue(new Event<T>(payload, null, true));
+    }
+
+    public synchronized void shutdown() {
+        isShutdown = true;
+        notifyAll();
+    }
+
+    public synchronized long getPostedCount() {
+        return postedCount;
+    }
+
+    // Number of events dropped because a newer one with the same key was posted before delivery
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    private synchronized void enqueue(Event<T> event) {
+        if (isShutdown) return;
+        postedCount++;
+        if (event.coalescingKey != null) {
+            Iterator<Event<T>> it = pending.iterator();
+            while (it.hasNext()) {
+                if (event.coalescingKey.equals(it.next().coalescingKey)) {
+                    it.remove();
+                    coalescedCount++;
+                }
+            }
+        }
+        pending.add(event);
+        if (event.isCritical) {
+            hasCritical = true;
+        }
+        notifyAll();
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            List<Event<T>> batch;
+            synchronized (this) {
+                try {
+                    while (!isShutdown) {
+                        if (pending.isEmpty()) {
+                            wait();
+                            continue;
+                        }
+                        long remaining = tLastDelivery + minInterval - System.currentTimeMillis();
+                        if (hasCritical || remaining <= 0) {
+                            break;
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (isShutdown) return;
+                batch = pending;
+                pending = new ArrayList<Event<T>>();
+                hasCritical = false;
+                tLastDelivery = System.currentTimeMillis();
+                batchCount++;
+            }
+            try {
+                sink.deliver(batch);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Error in delivering callbacks: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Leases held by client processes on apps' cloudlet VMs (and so on the VPN tunnel).
+ *
+ * A client takes a lease on an app with each findCloudlet and returns it with disconnectCloudlet.
+ * Once a client has registered its callback, the leases are tied to that binder: if the client
+ * process dies without disconnecting, its remaining leases are handed to the listener to be released.
+ */
+public class ClientLeases {
+    private static final String LOG_TAG = "ClientLeases";
+
+    public interface Listener {
+        // Called once per lease still held by a client whose process died
+        void onLeaseExpired(String clientId, String appId);
+    }
+
+    private final Listener listener;
+
+    // Guarded by this
+    private final Map<String, Client> clients = new HashMap<String, Client>();
+    private int leaseCount = 0;
+
+    private class Client implements IBinder.DeathRecipient {
+        final String id;
+        IBinder binder = null;
+        // One entry per lease; an app appears once per findCloudlet not yet disconnected
+        final List<String> appIds = new ArrayList<String>();
+
+        Client(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public void binderDied() {
+            List<String> expired;
+            synchronized (ClientLeases.this) {
+                if (clients.get(id) != this) return;
+                clients.remove(id);
+                expired = new ArrayList<String>(appIds);
+                leaseCount -= appIds.size();
+                appIds.clear();
+            }
+            Log.w(LOG_TAG, "Client " + id + " died holding " + expired.size() + " leases");
+            for (String appId : expired) {
+                listener.onLeaseExpired(id, appId);
+            }
+        }
+    }
+
+    public ClientLeases(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Ties the leases of a client to its binder, so they are released if the client dies.
+     */
+    public void bind(String clientId, IBinder binder) {
+        Client client;
+        IBinder old;
+        synchronized (this) {
+            client = getOrCreate(clientId);
+            old = client.binder;
+            if (old == binder) return;
+            client.binder = binder;
+        }
+        if (old != null) {
+            old.unlinkToDeath(client, 0);
+        }
+        try {
+            binder.linkToDeath(client, 0);
+        } catch (RemoteException e) {
+            // Already dead
+            client.binderDied();
+        }
+    }
+
+    /**
+     * Stops watching the binder of a client; its leases are kept until it disconnects.
+     */
+    public void unbind(String clientId, IBinder binder) {
+        Client client;
+        synchronized (this) {
+            client = clients.get(clientId);
+            if (client == null || client.binder != binder) return;
+            client.binder = null;
+            if (client.appIds.isEmpty()) {
+                clients.remove(clientId);
+            }
+        }
+        binder.unlinkToDeath(client, 0);
+    }
+
+    public synchronized void acquire(String clientId, String appId) {
+        getOrCreate(clientId).appIds.add(appId);
+        leaseCount++;
+    }
+
+    /**
+     * @return false if the client held no lease on the app
+     */
+    public synchronized boolean release(String clientId, String appId) {
+        Client client = clients.get(clientId);
+        if (client == null || !client.appIds.remove(appId)) {
+            return false;
+        }
+        leaseCount--;
+        if (client.appIds.isEmpty() && client.binder == null) {
+            clients.remove(clientId);
+        }
+        return true;
+    }
+
+    public synchronized int getLeaseCount() {
+        return leaseCount;
+    }
+
+    // Number of clients holding leases or registered for death notification
+    public synchronized int getClientCount() {
+        return clients.size();
+    }
+
+    private Client getOrCreate(String clientId) {
+        Client client = clients.get(clientId);
+        if (client == null) {
+            client = new Client(clientId);
+            clients.put(clientId, client);
+        }
+        return client;
+    }
+}
@@ -0,0 +1,192 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the best cloudlet out of a list of candidates.
+ *
+ * All candidates are probed in parallel (on a bounded pool) with a load query, which also gives the
+ * round-trip time. Each probe opens a new connection, so that cloudlets contacted recently do not
+ * look closer than others, and probes still running when the selection is made are aborted. Selection does not wait for every candidate: once the first answer arrives, the
+ * others get a small extra margin, so selection takes about one RTT of the closest cloudlet. Among
+ * the answers, the lowest RTT plus a penalty per unit of reported load wins.
+ */
+public class CloudletSelector {
+    private static final String LOG_TAG = "CloudletSelector";
+
+    public static final int LOAD_UNKNOWN = -1;
+
+    private final ThreadPoolExecutor pool;
+    private final long probeTimeout;
+    private final long marginMs;
+    private final long loadPenaltyMs;
+
+    public static class ProbeResult {
+        public final ProvisioningClient cloudlet;
+        public final boolean isReachable;
+        public final long rttMs;
+        public final int load;
+
+        ProbeResult(ProvisioningClient cloudlet, boolean isReachable, long rttMs, int load) {
+            this.cloudlet = cloudlet;
+            this.isReachable = isReachable;
+            this.rttMs = rttMs;
+            this.load = load;
+        }
+
+        @Override
+        public String toString() {
+            String name = cloudlet.getAddress();
+            if (!isReachable) return name + " unreachable";
+            return name + " rtt=" + rttMs + "ms load=" + (load == LOAD_UNKNOWN ? "?" : String.valueOf(load));
+        }
+    }
+
+    public static class Selection {
+        // null if no candidate answered in time
+        public final ProbeResult best;
+        // One result per candidate that answered (or failed) before the selection was made
+        public final List<ProbeResult> results;
+        public final long elapsedMs;
+
+        Selection(ProbeResult best, List<ProbeResult> results, long elapsedMs) {
+            this.best = best;
+            this.results = results;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    /**
+     * @param maxParallelProbes number of probes that may run at the same time
+     * @param probeTimeout how long to wait for the first answer
+     * @param marginMs how long to keep waiting for other answers after the first one
+     * @param loadPenaltyMs RTT-equivalent cost of one unit of reported load
+     */
+    public CloudletSelector(int maxParallelProbes, long probeTimeout, long marginMs, long loadPenaltyMs) {
+        this.probeTimeout = probeTimeout;
+        this.marginMs = marginMs;
+        this.loadPenaltyMs = loadPenaltyMs;
+        pool = new ThreadPoolExecutor(maxParallelProbes, maxParallelProbes, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CloudletProbe-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    // Number of probes still running, including those of past selections not aborted yet
+    public int getActiveProbeCount() {
+        return pool.getActiveCount();
+    }
+
+    public Selection select(List<ProvisioningClient> candidates) {
+        long tStart = System.currentTimeMillis();
+        ExecutorCompletionService<ProbeResult> completion = new ExecutorCompletionService<ProbeResult>(pool);
+        List<Future<ProbeResult>> futures = new ArrayList<Future<ProbeResult>>();
+        List<ProvisioningClient.Call> calls = new ArrayList<ProvisioningClient.Call>();
+        for (final ProvisioningClient cloudlet : candidates) {
+            final ProvisioningClient.Call probeCall = new ProvisioningClient.Call();
+            calls.add(probeCall);
+            futures.add(completion.submit(new Callable<ProbeResult>() {
+                @Override
+                public ProbeResult call() {
+                    return probe(cloudlet, probeCall);
+                }
+            }));
+        }
+
+        List<ProbeResult> results = new ArrayList<ProbeResult>();
+        ProbeResult best = null;
+        long deadline = tStart + probeTimeout;
+        boolean hasAnswer = false;
+        try {
+            for (int i = 0; i < candidates.size(); i++) {
+                long remaining = deadline - System.currentTimeMillis();
+                Future<ProbeResult> f = completion.poll(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+                if (f == null) break;
+                ProbeResult r = f.get();
+                results.add(r);
+                if (!r.isReachable) continue;
+                if (!hasAnswer) {
+                    hasAnswer = true;
+                    deadline = Math.min(deadline, System.currentTimeMillis() + marginMs);
+                }
+                if (best == null || score(r) < score(best)) {
+                    best = r;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, "Error in probing cloudlet: " + e.getMessage());
+        }
+        for (Future<ProbeResult> f : futures) {
+            f.cancel(true);
+        }
+        // Interrupting does not stop blocking socket I/O, closing the connection does
+        for (ProvisioningClient.Call call : calls) {
+            call.abort();
+        }
+
+        long elapsed = System.currentTimeMillis() - tStart;
+        Log.i(LOG_TAG, "Selected " + best + " out of " + results.size() + "/" + candidates.size()
+                + " answers in " + elapsed + " ms");
+        return new Selection(best, results, elapsed);
+    }
+
+    private long score(ProbeResult r) {
+        return r.rttMs + (r.load == LOAD_UNKNOWN ? 0 : r.load * loadPenaltyMs);
+    }
+
+    private static ProbeResult probe(ProvisioningClient cloudlet, ProvisioningClient.Call call) {
+        long tStart = System.currentTimeMillis();
+        String response = cloudlet.getLoad(call);
+        long rtt = System.currentTimeMillis() - tStart;
+        if (response == null) {
+            return new ProbeResult(cloudlet, false, rtt, LOAD_UNKNOWN);
+        }
+        int load = LOAD_UNKNOWN;
+        try {
+            load = (int) Double.parseDouble(response);
+        } catch (NumberFormatException e) {
+            // Server does not report load
+        }
+        return new ProbeResult(cloudlet, true, rtt, load);
+    }
+}
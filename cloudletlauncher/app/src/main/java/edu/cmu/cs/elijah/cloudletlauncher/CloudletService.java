@@ -15,37 +15,46 @@
 package edu.cmu.cs.elijah.cloudletlauncher;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.net.Uri;
-import android.os.AsyncTask;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Binder;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.util.Log;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 
 import de.blinkt.openvpn.api.APIVpnProfile;
 import de.blinkt.openvpn.api.IOpenVPNAPIService;
 import de.blinkt.openvpn.api.IOpenVPNStatusCallback;
+import edu.cmu.cs.elijah.cloudletlauncher.api.CloudletEvent;
 import edu.cmu.cs.elijah.cloudletlauncher.api.ICloudletService;
 import edu.cmu.cs.elijah.cloudletlauncher.api.ICloudletServiceCallback;
 
@@ -56,26 +65,169 @@ public class CloudletService extends Service {
     private String userId = "unknown";
 
     // Cloudlet info
-    private String cloudletIP = "8.225.186.10";
-    private int cloudletPort = 9127;
-    private String vmIp = "";
+    // Candidate cloudlets as "host:port"; each findCloudlet provisions on the best one of them
+    private static final String[] DEFAULT_CLOUDLETS = {"8.225.186.10:9127"};
+    private final List<ProvisioningClient> cloudlets = new CopyOnWriteArrayList<ProvisioningClient>();
+    // Clients of all cloudlets ever used, keyed by "host:port"
+    private final ConcurrentHashMap<String, ProvisioningClient> cloudletClients = new ConcurrentHashMap<String, ProvisioningClient>();
+    // Cloudlet hosting the VM of each app, keyed by "userId|appId"
+    private final Map<String, ProvisioningClient> appCloudlets = new ConcurrentHashMap<String, ProvisioningClient>();
+    private ProvisioningExecutor provisioningExecutor =
+            new ProvisioningExecutor(PROVISIONING_THREADS, PROVISIONING_MAX_QUEUED);
 
     // Message types
     private static final int MSG_POST_DONE = 0;
-    private static final int MSG_GET_DONE = 1;
     private static final int MSG_VPN_CONNECTED = 2;
 
+    // VM status checking
+    // Polling with backoff is only used if the server does not support long polling
+    private static final long POLLING_INITIAL_DELAY = 10000;
+    private static final long POLLING_BASE_PERIOD = 2000;
+    private static final long POLLING_MAX_PERIOD = 16000;
+    private static final long PROVISIONING_TIMEOUT = 180000;
+    private ProvisioningScheduler provisioningScheduler;
+
+    // Create/delete requests
+    private static final int PROVISIONING_THREADS = 4;
+    private static final int PROVISIONING_MAX_QUEUED = 64;
+
+    // VM IPs of recently provisioned apps, reused if the VM is still alive
+    private static final String PREFS_VM_IP_CACHE = "vm_ip_cache";
+    private static final long VM_IP_CACHE_TTL = 30 * 60 * 1000;
+    private VmIpCache vmIpCache;
+
+    // Cloudlet selection
+    private static final int PROBE_PARALLELISM = 8;
+    private static final long PROBE_TIMEOUT = 2000;
+    private static final long PROBE_MARGIN = 50;
+    private static final long PROBE_LOAD_PENALTY = 10;
+    private CloudletSelector cloudletSelector = new CloudletSelector(PROBE_PARALLELISM, PROBE_TIMEOUT,
+            PROBE_MARGIN, PROBE_LOAD_PENALTY);
+
+    // Handoff: after a network change, placement is re-evaluated once the network has settled, and
+    // VMs are moved (make-before-break) to a cloudlet whose RTT beats theirs by handoffMargin
+    private static final long DEFAULT_HANDOFF_MARGIN = 20;
+    private static final long NETWORK_SETTLE_DELAY = 1000;
+    // The old VM is deleted this long after the switch is announced, so apps can move over
+    private static final long HANDOFF_DRAIN_DELAY = 5000;
+    private static final String PLACEMENT_CHECK_KEY = "placement";
+    // Negative disables handoff
+    private volatile long handoffMargin = DEFAULT_HANDOFF_MARGIN;
+    // Handoffs in flight, keyed by "userId|appId"
+    private final Map<String, Handoff> handoffs = new ConcurrentHashMap<String, Handoff>();
+
+    // Connections to the ports apps register, opened before their IP is broadcast
+    private static final int PRECONNECT_PARALLELISM = 8;
+    private static final int PRECONNECT_TIMEOUT = 2000;
+    private static final long PRECONNECT_MAX_AGE = 60000;
+    private SocketPreconnector socketPreconnector = new SocketPreconnector(PRECONNECT_PARALLELISM,
+            PRECONNECT_TIMEOUT, PRECONNECT_MAX_AGE);
+
+    // Provisioning state per "userId|appId", shared by all findCloudlet calls of the app
+    private final Map<String, AppProvisioning> appProvisionings = new HashMap<String, AppProvisioning>();
+
+    // The VM of an app whose last user is gone is kept this long before being deleted, in case the
+    // app comes back (warm standby); 0 deletes it right away
+    private static final long DEFAULT_VM_STANDBY_GRACE = 60000;
+    private volatile long vmStandbyGrace = DEFAULT_VM_STANDBY_GRACE;
+    // Whether apps in standby keep their VPN connection reference
+    private volatile boolean isVpnKeptInStandby = true;
+    // Standby statistics; guarded by appProvisionings
+    private int standbyReattachCount = 0;
+    private int standbyExpiryCount = 0;
+
+    // Speculative provisioning (opt-in): when the launcher is bound or the device joins a network
+    // where apps have been launched before, the most likely apps are created ahead of time and kept
+    // like VMs in standby, so a later findCloudlet only attaches to them
+    private static final String PREFS_LAUNCH_HISTORY = "launch_history";
+    private static final long LAUNCH_HISTORY_HALF_LIFE = 7 * 24 * 60 * 60 * 1000L;
+    private static final int PREFETCH_MAX_APPS = 2;
+    // Roughly three launches within the last half-life
+    private static final double PREFETCH_MIN_SCORE = 2.5;
+    private static final long PREFETCH_TTL = 5 * 60 * 1000;
+    private LaunchPredictor launchPredictor;
+    private volatile boolean isPrefetchEnabled = false;
+    // Prefetch statistics; guarded by appProvisionings
+    private int prefetchCount = 0;
+    private int prefetchHitCount = 0;
+    private int prefetchWastedCount = 0;
+
+    // Latency of each provisioning phase, per cloudlet
+    private final ProvisioningStats provisioningStats = new ProvisioningStats();
+
     // OpenVPN connection
-    private IOpenVPNAPIService mVpnService = null;
+    // Written under vpnLock
+    private volatile IOpenVPNAPIService mVpnService = null;
     private boolean isVpnServiceReady = false;
     private Object vpnLock = new Object();
+    // Number of apps (plus startOpenVpn tests) using the tunnel
     private int vpnConnectionCounter = 0;
-    private String profileUuid = null;
+    private volatile boolean isVpnConnected = false;
+    // Whether the tunnel has been started and not torn down yet; guarded by vpnLock
+    private boolean isVpnStarted = false;
+    // The tunnel is kept up this long after its last user is gone, in case another one comes
+    private static final long DEFAULT_VPN_IDLE_DELAY = 30000;
+    private volatile long vpnIdleDelay = DEFAULT_VPN_IDLE_DELAY;
+    // Before that, a tunnel without users or without active leases is paused after VPN_PAUSE_DELAY,
+    // and resumed by the next findCloudlet, which is faster than a new handshake
+    private static final long VPN_PAUSE_DELAY = 2000;
+    // Guarded by vpnLock
+    private boolean isVpnPaused = false;
+    private int vpnPauseCount = 0;
+    // When the pending resume or cold start was requested; guarded by vpnLock
+    private long tVpnResume = 0;
+    private long tVpnColdStart = 0;
+    // Request-to-CONNECTED latency of cold starts and of resumes; guarded by vpnLock
+    private final LatencyHistogram vpnColdConnectLatency = new LatencyHistogram();
+    private final LatencyHistogram vpnResumeLatency = new LatencyHistogram();
+    // Tunnel usage statistics; guarded by vpnLock
+    private long tVpnUp = 0;
+    private long vpnUptime = 0;
+    private int vpnStartCount = 0;
+    private int vpnIdleTeardownCount = 0;
+    // Start time and app ("userId|appId") of a VPN connection attempt still waiting for CONNECTED;
+    // guarded by vpnLock
+    private long tVpnStart = 0;
+    private String vpnStartKey = null;
     private boolean isUsingTestProfile = false;
+    // Calls into the OpenVPN service made before it is bound, run in order once it is; guarded by vpnLock
+    private final ArrayDeque<VpnServiceCall> pendingVpnCalls = new ArrayDeque<VpnServiceCall>();
+
+    // OpenVPN profiles
+    private static final String VPN_PROFILE_NAME = "cloudlet";
+    // A missing profile is looked up again at most this often, in case the user adds it meanwhile
+    private static final long PROFILE_MISS_REFRESH_PERIOD = 5000;
+    private final Object profileLock = new Object();
+    // Guarded by profileLock
+    private boolean isProfileCacheValid = false;
+    private String cachedProfileUuid = null;
+    private long tProfileRefresh = 0;
+    // The test.conf asset is registered once as a profile named after a hash of its content, so an
+    // updated asset gets a new profile; guarded by profileLock
+    private static final String TEST_VPN_CONFIG_ASSET = "test.conf";
+    private static final String TEST_VPN_PROFILE_PREFIX = "cloudlet-test-";
+    private String testVpnConfig = null;
+    private String testProfileUuid = null;
 
     // Callbacks
     private final RemoteCallbackList<ICloudletServiceCallback> callbackList = new RemoteCallbackList<ICloudletServiceCallback>();
 
+    // Callbacks are broadcast from a dispatcher thread; non-critical ones at most this often
+    // Apps that subscribed get typed events, the others get the legacy string callbacks
+    private static final long CALLBACK_MIN_INTERVAL = 250;
+    // Coalescing key of OpenVPN state events, only the latest undelivered one is kept
+    private static final String COALESCE_VPN_STATE = "vpn_state";
+    private CallbackDispatcher<CloudletEvent> callbackDispatcher;
+
+    // Apps held by each client process, released if the process dies
+    private final ClientLeases clientLeases = new ClientLeases(new ClientLeases.Listener() {
+        @Override
+        public void onLeaseExpired(String clientId, String appId) {
+            Log.i(LOG_TAG, "Releasing " + appId + " held by dead client " + clientId);
+            releaseApp(userId, appId);
+        }
+    });
+
     // Modes
     private boolean isTesting = false;
 
@@ -84,6 +236,16 @@ public class CloudletService extends Service {
         Log.v(LOG_TAG, "++onCreate");
         super.onCreate();
 
+        provisioningScheduler = new ProvisioningScheduler(provisioningListener,
+                POLLING_INITIAL_DELAY, POLLING_BASE_PERIOD, POLLING_MAX_PERIOD, PROVISIONING_TIMEOUT);
+        provisioningScheduler.setStats(provisioningStats);
+        callbackDispatcher = new CallbackDispatcher<CloudletEvent>(callbackSink, CALLBACK_MIN_INTERVAL);
+        setCloudlets(DEFAULT_CLOUDLETS);
+        vmIpCache = new VmIpCache(getSharedPreferences(PREFS_VM_IP_CACHE, Context.MODE_PRIVATE), VM_IP_CACHE_TTL);
+        launchPredictor = new LaunchPredictor(getSharedPreferences(PREFS_LAUNCH_HISTORY, Context.MODE_PRIVATE),
+                LAUNCH_HISTORY_HALF_LIFE);
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
         // Bind to the OpenVPN service
         Intent intentVpnService = new Intent(IOpenVPNAPIService.class.getName());
         Log.i(LOG_TAG, IOpenVPNAPIService.class.getName());
@@ -94,6 +256,27 @@ public class CloudletService extends Service {
 
     @Override
     public void onDestroy() {
+        unregisterReceiver(connectivityReceiver);
+        mHandler.removeCallbacks(vpnIdleTeardown);
+        mHandler.removeCallbacks(vpnIdlePause);
+        mHandler.removeCallbacks(placementCheck);
+        // VMs in standby are left running; they stay in the VM IP cache for the next launcher start
+        synchronized (appProvisionings) {
+            for (AppProvisioning ap : appProvisionings.values()) {
+                if (ap.standbyExpiry != null) {
+                    mHandler.removeCallbacks(ap.standbyExpiry);
+                }
+            }
+        }
+        callbackDispatcher.shutdown();
+        provisioningScheduler.shutdown();
+        provisioningExecutor.shutdown();
+        cloudletSelector.shutdown();
+        socketPreconnector.shutdown();
+        for (ProvisioningClient cloudlet : cloudletClients.values()) {
+            cloudlet.close();
+        }
+
         if (mVpnService != null) {
             try {
                 mVpnService.disconnect();
@@ -111,9 +294,21 @@ public class CloudletService extends Service {
 
     @Override
     public IBinder onBind(Intent intent) {
+        prefetchLikelyApps("bind");
         return mBinder;
     }
 
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // Get onRebind for later binds, so each of them can trigger prefetching
+        return true;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        prefetchLikelyApps("rebind");
+    }
+
     private final ICloudletService.Stub mBinder = new ICloudletService.Stub() {
         public boolean isServiceReady() {
             return isVpnServiceReady;
@@ -131,33 +326,123 @@ public class CloudletService extends Service {
             userId = id;
         }
 
+        public void setCloudlets(String[] cloudlets) {
+            CloudletService.this.setCloudlets(cloudlets);
+        }
+
+        public Bundle getProvisioningStats() {
+            Bundle stats = provisioningStats.toBundle();
+            stats.putBundle(ProvisioningStats.KEY_EXECUTOR, provisioningExecutor.toBundle());
+            return stats;
+        }
+
+        public void setVpnIdleDelay(long delayMs) {
+            vpnIdleDelay = Math.max(0, delayMs);
+        }
+
+        public Bundle getVpnStats() {
+            return CloudletService.this.getVpnStats();
+        }
+
+        public void setVmStandbyGrace(long graceMs, boolean keepVpn) {
+            vmStandbyGrace = Math.max(0, graceMs);
+            isVpnKeptInStandby = keepVpn;
+        }
+
+        public Bundle getStandbyStats() {
+            return CloudletService.this.getStandbyStats();
+        }
+
+        public void setPreconnectPorts(String appId, int[] ports) {
+            socketPreconnector.setPorts(userId + "|" + appId, ports);
+        }
+
+        public ParcelFileDescriptor takeConnectedSocket(String appId, int port) {
+            String ip;
+            synchronized (appProvisionings) {
+                AppProvisioning ap = appProvisionings.get(userId + "|" + appId);
+                ip = ap == null ? null : ap.vmIp;
+            }
+            if (ip == null) {
+                return null;
+            }
+            Socket socket = socketPreconnector.take(userId + "|" + appId, ip, port);
+            if (socket == null) {
+                return null;
+            }
+            try {
+                // The app gets its own descriptor of the connection; ours is closed right away
+                return ParcelFileDescriptor.fromSocket(socket);
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {}
+            }
+        }
+
+        public void setHandoffMargin(long rttMarginMs) {
+            handoffMargin = rttMarginMs;
+        }
+
+        public void setPrefetchEnabled(boolean flag) {
+            isPrefetchEnabled = flag;
+            if (flag) {
+                prefetchLikelyApps("enabled");
+            }
+        }
+
+        public Bundle getPrefetchStats() {
+            return CloudletService.this.getPrefetchStats();
+        }
+
         public void startOpenVpn() {
             isTesting = true;
-            profileUuid = getVpnProfileUuid();
             connectVpn();
         }
 
         public void endOpenVpn() {
             isTesting = false;
-            profileUuid = getVpnProfileUuid();
             disconnectVpn();
         }
 
         public void findCloudlet(String appId) {
             Log.d(LOG_TAG, "++findCloudlet");
-            profileUuid = getVpnProfileUuid();
-            new SendPostRequestAsync().execute("http://" + cloudletIP + ":" + cloudletPort, "create", appId, userId);
+            launchPredictor.recordLaunch(getNetworkName(), appId, System.currentTimeMillis());
+            clientLeases.acquire(getCallingClientId(), appId);
+            attachToProvisioning(userId, appId);
+        };
+
+        public void findCloudlets(String[] appIds) {
+            Log.d(LOG_TAG, "++findCloudlets");
+            List<String> newFlights = new ArrayList<String>();
+            String network = getNetworkName();
+            for (String appId : new HashSet<String>(Arrays.asList(appIds))) {
+                launchPredictor.recordLaunch(network, appId, System.currentTimeMillis());
+                clientLeases.acquire(getCallingClientId(), appId);
+                if (attachApp(userId, appId)) {
+                    newFlights.add(appId);
+                }
+            }
+            if (newFlights.size() == 1) {
+                findCloudletAsync(newFlights.get(0), userId);
+            } else if (!newFlights.isEmpty()) {
+                findCloudletsAsync(newFlights, userId);
+            }
         };
 
         public void disconnectCloudlet(String appId) {
             Log.d(LOG_TAG, "++disconnectCloudlet");
-            profileUuid = getVpnProfileUuid();
-            disconnectVpn();
-            new SendPostRequestAsync().execute("http://" + cloudletIP + ":" + cloudletPort, "delete", appId, userId);
+            // Only the leases of the calling client may be returned; the VM may be used by others
+            if (!clientLeases.release(getCallingClientId(), appId)) {
+                Log.w(LOG_TAG, "Client " + getCallingClientId() + " disconnects " + appId + " without holding it");
+                return;
+            }
+            releaseApp(userId, appId);
         };
 
         public void registerCallback(ICloudletServiceCallback cb) {
             callbackList.register(cb);
+            clientLeases.bind(getCallingClientId(), cb.asBinder());
             if (isServiceReady()) {
                 try {
                     cb.amReady();
@@ -166,202 +451,923 @@ public class CloudletService extends Service {
             Log.d(LOG_TAG, "Callback from other apps registered");
         }
 
+        public void subscribeCallback(ICloudletServiceCallback cb, String[] appIds, int typeMask) {
+            Subscription subscription = new Subscription(appIds, typeMask);
+            callbackList.unregister(cb);
+            callbackList.register(cb, subscription);
+            clientLeases.bind(getCallingClientId(), cb.asBinder());
+            CloudletEvent ready = new CloudletEvent(CloudletEvent.Type.SERVICE_READY);
+            if (isServiceReady() && subscription.matches(ready)) {
+                try {
+                    cb.onEvent(ready);
+                } catch (RemoteException e) {}
+            }
+            Log.d(LOG_TAG, "Callback from other apps subscribed to events " + Integer.toHexString(typeMask)
+                    + " of " + (appIds == null ? "all apps" : Arrays.toString(appIds)));
+        }
+
         public void unregisterCallback(ICloudletServiceCallback cb) {
             callbackList.unregister(cb);
+            clientLeases.unbind(getCallingClientId(), cb.asBinder());
             Log.d(LOG_TAG, "Callback from other apps unregistered");
         }
     };
 
 
+    private static String getCallingClientId() {
+        return "pid:" + Binder.getCallingPid();
+    }
+
     /***** Begin handling http connections ********************************************************/
     private class PostMsgWrapper
     {
+        public ProvisioningClient cloudlet;
         public String response;
         public String action;
         public String appId;
+        // Set instead of appId for batch requests
+        public List<String> appIds;
         public String userId;
     }
 
-    private String sendPostRequest(String... paras) {
+    private void sendPostRequest(ProvisioningClient cloudlet, String action, String appId, String userId) {
+        PostMsgWrapper p = new PostMsgWrapper();
+        p.cloudlet = cloudlet;
+        p.action = action;
+        p.appId = appId;
+        p.userId = userId;
+        long tStart = System.currentTimeMillis();
+        p.response = cloudlet.post(action, appId, userId);
+        if (action.equals("create")) {
+            recordPhase(userId + "|" + appId, ProvisioningStats.PHASE_POST_CREATE, System.currentTimeMillis() - tStart);
+        } else {
+            provisioningStats.record(cloudlet.getAddress(), ProvisioningStats.PHASE_POST_DELETE,
+                    System.currentTimeMillis() - tStart);
+        }
+        if (p.response != null) {
+            Message msg = Message.obtain();
+            msg.what = MSG_POST_DONE;
+            msg.obj = p;
+            mHandler.sendMessage(msg);
+        }
+    }
+
+    // Operations of the same app are kept in order; different apps are served in parallel
+    private void runForApp(String action, String appId, Runnable task) {
         try {
-            URL url = new URL(paras[0]); // here is your URL path
-            String action = paras[1];
-            String appId = paras[2];
-            String userId = paras[3];
+            provisioningExecutor.execute(appId, task);
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "Dropped '" + action + "' for " + appId + ": " + e.getMessage());
+            postError(appId, "Launcher is busy, '" + action + "' for " + appId + " was dropped");
+        }
+    }
+
+    private void sendPostRequestAsync(final ProvisioningClient cloudlet, final String action,
+                                      final String appId, final String userId) {
+        runForApp(action, appId, new Runnable() {
+            @Override
+            public void run() {
+                sendPostRequest(cloudlet, action, appId, userId);
+            }
+        });
+    }
+
+    // Reuses the cached VM of the app if the server still reports it, otherwise creates a new one
+    private void findCloudletAsync(final String appId, final String userId) {
+        runForApp("create", appId, new Runnable() {
+            @Override
+            public void run() {
+                String key = userId + "|" + appId;
+                VmIpCache.Entry cached = vmIpCache.get(userId, appId);
+                if (cached != null) {
+                    ProvisioningClient cloudlet = getCloudlet(cached.cloudlet);
+                    String response = cloudlet.getStatus(userId, appId, 0);
+                    if (cached.ip.equals(response)) {
+                        Log.i(LOG_TAG, "Reusing cached cloudlet VM IP: " + cached.ip);
+                        setAppCloudlet(key, cloudlet);
+                        vmIpCache.put(userId, appId, cloudlet.getAddress(), cached.ip);
+                        onVmIpKnown(userId, appId, cached.ip);
+                        return;
+                    }
+                    Log.i(LOG_TAG, "Cached cloudlet VM of " + appId + " is gone: " + response);
+                    vmIpCache.remove(userId, appId);
+                }
+                ProvisioningClient cloudlet = selectCloudlet(Collections.singletonList(appId));
+                setAppCloudlet(key, cloudlet);
+                sendPostRequest(cloudlet, "create", appId, userId);
+            }
+        });
+    }
+
+    /**
+     * Batch version of findCloudletAsync: cached VMs are probed with one status query per cloudlet,
+     * and all other apps are created on one cloudlet with a single request. Falls back to one
+     * create per app if the cloudlet does not handle batches.
+     */
+    private void findCloudletsAsync(final List<String> appIds, final String userId) {
+        // Ordered with the first app's operations only; apps released meanwhile are skipped below
+        runForApp("create", appIds.get(0), new Runnable() {
+            @Override
+            public void run() {
+                List<String> toCreate = new ArrayList<String>();
+                Map<ProvisioningClient, List<String>> cachedApps = new HashMap<ProvisioningClient, List<String>>();
+                for (String appId : appIds) {
+                    VmIpCache.Entry cached = vmIpCache.get(userId, appId);
+                    ProvisioningClient cloudlet = cached != null ? getCloudlet(cached.cloudlet) : null;
+                    if (cloudlet == null) {
+                        toCreate.add(appId);
+                        continue;
+                    }
+                    List<String> apps = cachedApps.get(cloudlet);
+                    if (apps == null) {
+                        apps = new ArrayList<String>();
+                        cachedApps.put(cloudlet, apps);
+                    }
+                    apps.add(appId);
+                }
+                for (Map.Entry<ProvisioningClient, List<String>> e : cachedApps.entrySet()) {
+                    ProvisioningClient cloudlet = e.getKey();
+                    Map<String, String> statuses = cloudlet.getStatuses(userId, e.getValue(), 0);
+                    for (String appId : e.getValue()) {
+                        VmIpCache.Entry cached = vmIpCache.get(userId, appId);
+                        String response = statuses == null ? null
+                                : statuses.isEmpty() ? cloudlet.getStatus(userId, appId, 0) : statuses.get(appId);
+                        if (cached != null && cached.ip.equals(response)) {
+                            Log.i(LOG_TAG, "Reusing cached cloudlet VM IP: " + cached.ip);
+                            setAppCloudlet(userId + "|" + appId, cloudlet);
+                            vmIpCache.put(userId, appId, cloudlet.getAddress(), cached.ip);
+                            onVmIpKnown(userId, appId, cached.ip);
+                        } else {
+                            Log.i(LOG_TAG, "Cached cloudlet VM of " + appId + " is gone: " + response);
+                            vmIpCache.remove(userId, appId);
+                            toCreate.add(appId);
+                        }
+                    }
+                }
+
+                toCreate = filterInFlight(userId, toCreate);
+                if (toCreate.isEmpty()) {
+                    return;
+                }
+                ProvisioningClient cloudlet = selectCloudlet(toCreate);
+                for (String appId : toCreate) {
+                    setAppCloudlet(userId + "|" + appId, cloudlet);
+                }
+                if (toCreate.size() == 1) {
+                    sendPostRequest(cloudlet, "create", toCreate.get(0), userId);
+                    return;
+                }
+
+                long tStart = System.currentTimeMillis();
+                String response = cloudlet.postBatch("create", toCreate, userId);
+                long elapsed = System.currentTimeMillis() - tStart;
+                provisioningStats.record(cloudlet.getAddress(), ProvisioningStats.PHASE_POST_CREATE, elapsed);
+                if (response == null) {
+                    Log.e(LOG_TAG, "Batch create of " + toCreate + " failed");
+                    return;
+                }
+                if (!response.equals("OK")) {
+                    Log.i(LOG_TAG, "Batch create not supported by " + cloudlet.getAddress() + ": " + response);
+                    for (String appId : toCreate) {
+                        sendPostRequestAsync(cloudlet, "create", appId, userId);
+                    }
+                    return;
+                }
+                for (String appId : toCreate) {
+                    noteLatency(userId + "|" + appId, ProvisioningStats.PHASE_POST_CREATE, elapsed);
+                }
+                PostMsgWrapper p = new PostMsgWrapper();
+                p.cloudlet = cloudlet;
+                p.response = response;
+                p.action = "create";
+                p.appIds = toCreate;
+                p.userId = userId;
+                Message msg = Message.obtain();
+                msg.what = MSG_POST_DONE;
+                msg.obj = p;
+                mHandler.sendMessage(msg);
+            }
+        });
+    }
+
+    /***** End handling http connections **********************************************************/
+
+    /***** Begin handling provisioning requests ***************************************************/
+    // Single-flight state of an app: one create and one VPN connection, however many callers
+    private static class AppProvisioning {
+        // findCloudlet calls not matched by a disconnectCloudlet yet
+        int users = 0;
+        // null while provisioning is in flight
+        String vmIp = null;
+        boolean isFailed = false;
+        // Start of the current provisioning attempt (0 once its latency has been recorded)
+        long tStart = 0;
+        // When status checking started for the current attempt
+        long tPollStart = 0;
+        // Latency of each phase of the current attempt
+        final Map<String, Long> latencies = new HashMap<String, Long>();
+        // Whether the cloudlet of the current attempt has been chosen, and the phases measured before
+        // that, which are added to the stats of the cloudlet once it is known
+        boolean isCloudletChosen = false;
+        final Map<String, Long> unattributedPhases = new HashMap<String, Long>();
+        // Whether vmIp has been broadcast to the apps since it was last set
+        boolean isAnnounced = false;
+        // Whether the app holds a VPN connection reference
+        boolean hasVpn = false;
+        // Pending delete while the VM is in standby (no users left), null otherwise
+        Runnable standbyExpiry = null;
+        // Provisioned speculatively and not attached to yet
+        boolean isSpeculative = false;
+    }
+
+    /**
+     * Registers a caller of findCloudlet. Only the first caller (or the first after a failure)
+     * starts provisioning; later callers attach to it and get the same newServerIP.
+     *
+     * The VPN tunnel does not depend on the VM, so it is brought up right away in parallel with
+     * provisioning; the IP is broadcast once both are done.
+     */
+    private void attachToProvisioning(String userId, String appId) {
+        if (attachApp(userId, appId)) {
+            findCloudletAsync(appId, userId);
+        }
+    }
 
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setReadTimeout(15000 /* milliseconds */);
-            conn.setConnectTimeout(15000 /* milliseconds */);
-            conn.setRequestMethod("POST");
-            conn.setDoOutput(true);
+    // Registers a caller of findCloudlet; returns whether the caller has to start provisioning
+    private boolean attachApp(String userId, String appId) {
+        String key = userId + "|" + appId;
+        boolean isVpnNeeded;
+        boolean isNewFlight = false;
+        String ip;
+        synchronized (appProvisionings) {
+            AppProvisioning ap = appProvisionings.get(key);
+            if (ap == null) {
+                ap = new AppProvisioning();
+                appProvisionings.put(key, ap);
+                isNewFlight = true;
+            } else if (ap.standbyExpiry != null) {
+                mHandler.removeCallbacks(ap.standbyExpiry);
+                ap.standbyExpiry = null;
+                if (ap.isSpeculative) {
+                    Log.i(LOG_TAG, "Cloudlet VM of " + appId + " was prefetched, attaching to it");
+                    ap.isSpeculative = false;
+                    prefetchHitCount++;
+                } else {
+                    Log.i(LOG_TAG, "Cloudlet VM of " + appId + " is back from standby");
+                    standbyReattachCount++;
+                }
+            }
+            if (ap.isFailed) {
+                ap.isFailed = false;
+                isNewFlight = true;
+            }
+            if (isNewFlight) {
+                ap.tStart = System.currentTimeMillis();
+                ap.latencies.clear();
+                ap.isCloudletChosen = false;
+                ap.unattributedPhases.clear();
+            }
+            ap.users++;
+            isVpnNeeded = !ap.hasVpn;
+            ap.hasVpn = true;
+            ip = ap.vmIp;
+            if (ip != null) {
+                // Already provisioned: broadcast it again for the new caller
+                ap.isAnnounced = false;
+            }
+        }
+        if (isVpnNeeded) {
+            startVpn(key);
+        } else {
+            resumeVpn();
+        }
+        if (isNewFlight) {
+            return true;
+        }
+        if (ip == null) {
+            Log.i(LOG_TAG, "Provisioning of " + appId + " is in flight, attaching to it");
+        } else {
+            Log.i(LOG_TAG, "Cloudlet VM of " + appId + " is already provisioned: " + ip);
+            requestAnnouncement();
+        }
+        return false;
+    }
 
-            Uri.Builder builder = new Uri.Builder()
-                    .appendQueryParameter("user_id", userId)
-                    .appendQueryParameter("app_id", appId)
-                    .appendQueryParameter("action", action);
-            String query = builder.build().getEncodedQuery();
+    // Apps of the list whose provisioning is still wanted and not done yet
+    private List<String> filterInFlight(String userId, List<String> appIds) {
+        List<String> inFlight = new ArrayList<String>();
+        synchronized (appProvisionings) {
+            for (String appId : appIds) {
+                AppProvisioning ap = appProvisionings.get(userId + "|" + appId);
+                if (ap != null && ap.vmIp == null && !ap.isFailed) {
+                    inFlight.add(appId);
+                }
+            }
+        }
+        return inFlight;
+    }
 
-            OutputStream os = conn.getOutputStream();
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-            writer.write(query);
-            writer.flush();
-            writer.close();
-            os.close();
+    private void setProvisioningResult(String userId, String appId, String ip) {
+        synchronized (appProvisionings) {
+            AppProvisioning ap = appProvisionings.get(userId + "|" + appId);
+            if (ap != null) {
+                ap.vmIp = ip;
+                ap.isFailed = (ip == null);
+                ap.isAnnounced = false;
+            }
+        }
+    }
 
-            int responseCode = conn.getResponseCode();
+    // Returns the IPs (keyed by "userId|appId") that have not been broadcast yet, and marks them as broadcast
+    private Map<String, String> takeUnannouncedIps() {
+        Map<String, String> ips = new HashMap<String, String>();
+        synchronized (appProvisionings) {
+            for (Map.Entry<String, AppProvisioning> e : appProvisionings.entrySet()) {
+                AppProvisioning ap = e.getValue();
+                if (ap.vmIp == null || ap.isAnnounced || ap.standbyExpiry != null) continue;
+                ap.isAnnounced = true;
+                ips.put(e.getKey(), ap.vmIp);
+            }
+        }
+        return ips;
+    }
 
-            if (responseCode == HttpsURLConnection.HTTP_OK) {
-                String serverResponse = readStream(conn.getInputStream());
-                return serverResponse;
+    /**
+     * Releases one user of an app. Once the last one is gone, a provisioned VM goes into standby
+     * for vmStandbyGrace (so a findCloudlet in the meantime re-attaches to it at once) and is
+     * deleted afterwards; a VM still in flight or failed is deleted right away.
+     */
+    private void releaseApp(String userId, String appId) {
+        scheduleVpnPause();
+        String key = userId + "|" + appId;
+        long grace = vmStandbyGrace;
+        boolean isStandby = false;
+        boolean hadVpn = false;
+        synchronized (appProvisionings) {
+            AppProvisioning ap = appProvisionings.get(key);
+            if (ap != null && ap.standbyExpiry != null) {
+                Log.w(LOG_TAG, "Cloudlet VM of " + appId + " is already in standby");
+                return;
+            }
+            if (ap != null && --ap.users > 0) {
+                Log.i(LOG_TAG, "Cloudlet VM of " + appId + " is still used by " + ap.users + " callers");
+                return;
+            }
+            if (ap != null && ap.vmIp != null && grace > 0) {
+                isStandby = true;
+                ap.standbyExpiry = new StandbyExpiry(userId, appId);
+                if (!isVpnKeptInStandby) {
+                    hadVpn = ap.hasVpn;
+                    ap.hasVpn = false;
+                }
+                mHandler.postDelayed(ap.standbyExpiry, grace);
+            } else if (ap != null) {
+                appProvisionings.remove(key);
+                hadVpn = ap.hasVpn;
             }
         }
-        catch(Exception e){
-            Log.e(LOG_TAG, "Error in sending POST message: " + e.getMessage());
+        if (isStandby) {
+            Log.i(LOG_TAG, "Keeping cloudlet VM of " + appId + " in standby for " + grace + " ms");
+            if (hadVpn) {
+                disconnectVpn();
+            }
+            return;
+        }
+        deleteApp(userId, appId, hadVpn);
+    }
+
+    // Deletes the VM of an app which has no users left
+    private void deleteApp(String userId, String appId, boolean hadVpn) {
+        provisioningScheduler.cancel(userId, appId);
+        Handoff handoff = handoffs.remove(userId + "|" + appId);
+        if (handoff != null) {
+            sendPostRequestAsync(handoff.to, "delete", appId, userId);
+        }
+        socketPreconnector.drop(userId + "|" + appId);
+        vmIpCache.remove(userId, appId);
+        if (hadVpn) {
+            disconnectVpn();
+        }
+        ProvisioningClient cloudlet = appCloudlets.remove(userId + "|" + appId);
+        if (cloudlet == null) {
+            cloudlet = cloudlets.get(0);
         }
-        return null;
+        sendPostRequestAsync(cloudlet, "delete", appId, userId);
     }
 
-    public class SendPostRequestAsync extends AsyncTask<String, Void, PostMsgWrapper> {
+    private class StandbyExpiry implements Runnable {
+        final String userId;
+        final String appId;
+
+        StandbyExpiry(String userId, String appId) {
+            this.userId = userId;
+            this.appId = appId;
+        }
+
         @Override
-        protected PostMsgWrapper doInBackground(String... paras) {
-            PostMsgWrapper p = new PostMsgWrapper();
-            p.response = sendPostRequest(paras);
-            p.action = paras[1];
-            p.appId = paras[2];
-            p.userId = paras[3];
-            return p;
+        public void run() {
+            boolean hadVpn;
+            synchronized (appProvisionings) {
+                AppProvisioning ap = appProvisionings.get(userId + "|" + appId);
+                if (ap == null || ap.standbyExpiry != this) {
+                    return;
+                }
+                appProvisionings.remove(userId + "|" + appId);
+                hadVpn = ap.hasVpn;
+                if (ap.isSpeculative) {
+                    prefetchWastedCount++;
+                } else {
+                    standbyExpiryCount++;
+                }
+            }
+            Log.i(LOG_TAG, "Standby of cloudlet VM of " + appId + " expired, deleting it");
+            deleteApp(userId, appId, hadVpn);
+        }
+    }
+
+    private Bundle getStandbyStats() {
+        Bundle b = new Bundle();
+        synchronized (appProvisionings) {
+            int standbyCount = 0;
+            for (AppProvisioning ap : appProvisionings.values()) {
+                if (ap.standbyExpiry != null && !ap.isSpeculative) {
+                    standbyCount++;
+                }
+            }
+            b.putLong("grace_ms", vmStandbyGrace);
+            b.putBoolean("keeps_vpn", isVpnKeptInStandby);
+            b.putInt("standby_count", standbyCount);
+            b.putInt("reattach_count", standbyReattachCount);
+            b.putInt("expiry_count", standbyExpiryCount);
+        }
+        return b;
+    }
+
+    /**
+     * Creates VMs (and takes the tunnel) for the apps most likely to be launched soon on the current
+     * network, if prefetching is enabled. Prefetched VMs nobody attaches to within PREFETCH_TTL are
+     * deleted and counted as wasted.
+     */
+    private void prefetchLikelyApps(String reason) {
+        if (!isPrefetchEnabled) {
+            return;
+        }
+        String network = getNetworkName();
+        List<String> likelyApps = launchPredictor.getLikelyApps(network, PREFETCH_MAX_APPS, PREFETCH_MIN_SCORE,
+                System.currentTimeMillis());
+        String userId = this.userId;
+        List<String> newFlights = new ArrayList<String>();
+        for (String appId : likelyApps) {
+            String key = userId + "|" + appId;
+            synchronized (appProvisionings) {
+                if (appProvisionings.containsKey(key)) {
+                    continue;
+                }
+                AppProvisioning ap = new AppProvisioning();
+                ap.isSpeculative = true;
+                ap.hasVpn = true;
+                ap.tStart = System.currentTimeMillis();
+                ap.standbyExpiry = new StandbyExpiry(userId, appId);
+                appProvisionings.put(key, ap);
+                prefetchCount++;
+                mHandler.postDelayed(ap.standbyExpiry, PREFETCH_TTL);
+            }
+            startVpn(key);
+            newFlights.add(appId);
+        }
+        if (newFlights.isEmpty()) {
+            return;
+        }
+        Log.i(LOG_TAG, "Prefetching cloudlet VMs of " + newFlights + " on " + network + " (" + reason + ")");
+        if (newFlights.size() == 1) {
+            findCloudletAsync(newFlights.get(0), userId);
+        } else {
+            findCloudletsAsync(newFlights, userId);
+        }
+    }
+
+    private Bundle getPrefetchStats() {
+        Bundle b = new Bundle();
+        synchronized (appProvisionings) {
+            int pending = 0;
+            for (AppProvisioning ap : appProvisionings.values()) {
+                if (ap.isSpeculative) {
+                    pending++;
+                }
+            }
+            b.putBoolean("is_enabled", isPrefetchEnabled);
+            b.putInt("prefetch_count", prefetchCount);
+            b.putInt("hit_count", prefetchHitCount);
+            b.putInt("wasted_count", prefetchWastedCount);
+            b.putInt("pending_count", pending);
+            int decided = prefetchHitCount + prefetchWastedCount;
+            b.putInt("hit_rate_percent", decided == 0 ? 0 : prefetchHitCount * 100 / decided);
         }
+        return b;
+    }
 
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
         @Override
-        protected void onPostExecute(PostMsgWrapper p) {
-            if (p.response != null) {
-                Message msg = Message.obtain();
-                msg.what = MSG_POST_DONE;
-                msg.obj = p;
-                mHandler.sendMessage(msg);
+        public void onReceive(Context context, Intent intent) {
+            if (isInitialStickyBroadcast()) {
+                return;
+            }
+            NetworkInfo info = getActiveNetworkInfo();
+            if (info != null && info.isConnected()) {
+                prefetchLikelyApps("network change");
+                mHandler.removeCallbacks(placementCheck);
+                mHandler.postDelayed(placementCheck, NETWORK_SETTLE_DELAY);
             }
         }
+    };
+
+    private NetworkInfo getActiveNetworkInfo() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        return cm == null ? null : cm.getActiveNetworkInfo();
     }
 
+    // Identifies the current network for the launch history, e.g. "WIFI/"home"" or "MOBILE/apn"
+    private String getNetworkName() {
+        NetworkInfo info = getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return "none";
+        }
+        return info.getTypeName() + "/" + info.getExtraInfo();
+    }
 
-    private String sendGetRequest(String... paras) {
-        try {
-            URL url = new URL(paras[0]);
+    // Records the broadcast and end-to-end latency of an app whose IP has just been broadcast
+    private void recordAnnounced(String key, long broadcastMs) {
+        long total;
+        synchronized (appProvisionings) {
+            AppProvisioning ap = appProvisionings.get(key);
+            if (ap == null || ap.tStart == 0) return;
+            total = System.currentTimeMillis() - ap.tStart;
+            ap.tStart = 0;
+        }
+        recordPhase(key, ProvisioningStats.PHASE_BROADCAST, broadcastMs);
+        recordPhase(key, ProvisioningStats.PHASE_TOTAL, total);
+    }
 
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setReadTimeout(15000 /* milliseconds */);
-            conn.setConnectTimeout(15000 /* milliseconds */);
+    // Records a phase of an app both in the per-cloudlet stats and in the app's own latencies
+    private void recordPhase(String key, String phase, long ms) {
+        provisioningStats.record(getCloudletAddress(key), phase, ms);
+        noteLatency(key, phase, ms);
+    }
 
-            int responseCode = conn.getResponseCode();
+    /**
+     * Like recordPhase, for phases (the VPN ones) that may end before findCloudletAsync has chosen
+     * the cloudlet of the app; those are added to the stats of the cloudlet once it is chosen.
+     */
+    private void recordEarlyPhase(String key, String phase, long ms) {
+        noteLatency(key, phase, ms);
+        synchronized (appProvisionings) {
+            AppProvisioning ap = appProvisionings.get(key);
+            if (ap != null && !ap.isCloudletChosen) {
+                ap.unattributedPhases.put(phase, ms);
+                return;
+            }
+        }
+        provisioningStats.record(getCloudletAddress(key), phase, ms);
+    }
 
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                String serverResponse = readStream(conn.getInputStream());
-                return serverResponse;
+    // Sets the cloudlet hosting the VM of an app, and records the phases that were waiting for it
+    private void setAppCloudlet(String key, ProvisioningClient cloudlet) {
+        appCloudlets.put(key, cloudlet);
+        Map<String, Long> phases = null;
+        synchronized (appProvisionings) {
+            AppProvisioning ap = appProvisionings.get(key);
+            if (ap != null) {
+                ap.isCloudletChosen = true;
+                if (!ap.unattributedPhases.isEmpty()) {
+                    phases = new HashMap<String, Long>(ap.unattributedPhases);
+                    ap.unattributedPhases.clear();
+                }
+            }
+        }
+        if (phases != null) {
+            for (Map.Entry<String, Long> e : phases.entrySet()) {
+                provisioningStats.record(cloudlet.getAddress(), e.getKey(), e.getValue());
             }
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "Error in sending GET message: " + e.getMessage());
         }
+    }
 
-        return null;
+    private void noteLatency(String key, String phase, long ms) {
+        synchronized (appProvisionings) {
+            AppProvisioning ap = appProvisionings.get(key);
+            if (ap != null) {
+                ap.latencies.put(phase, ms);
+            }
+        }
     }
 
-    public class SendGetRequestAsync extends AsyncTask<String , Void ,String> {
-        @Override
-        protected String doInBackground(String... paras) {
-            return sendGetRequest(paras);
+    // Event about the VM of an app, with its timing so far
+    private CloudletEvent newAppEvent(CloudletEvent.Type type, String key, String appId, String ip) {
+        CloudletEvent event = new CloudletEvent(type);
+        event.appId = appId;
+        event.vmIp = ip;
+        event.cloudlet = getCloudletAddress(key);
+        event.latencies = new Bundle();
+        synchronized (appProvisionings) {
+            AppProvisioning ap = appProvisionings.get(key);
+            if (ap != null) {
+                if (ap.tStart != 0) {
+                    event.elapsedMs = event.timestamp - ap.tStart;
+                }
+                for (Map.Entry<String, Long> e : ap.latencies.entrySet()) {
+                    event.latencies.putLong(e.getKey(), e.getValue());
+                }
+            }
         }
+        return event;
+    }
 
-        @Override
-        protected void onPostExecute(String result) {
-            if (result != null) {
-                Message msg = Message.obtain();
-                msg.what = MSG_GET_DONE;
-                mHandler.sendMessage(msg);
+    private void setPollStart(String key) {
+        synchronized (appProvisionings) {
+            AppProvisioning ap = appProvisionings.get(key);
+            if (ap != null) {
+                ap.tPollStart = System.currentTimeMillis();
             }
         }
     }
 
-    // Converting InputStream to String
-    private String readStream(InputStream in) {
-        BufferedReader reader = null;
-        StringBuffer response = new StringBuffer();
+    private long getPollStart(String key) {
+        synchronized (appProvisionings) {
+            AppProvisioning ap = appProvisionings.get(key);
+            return ap != null ? ap.tPollStart : 0;
+        }
+    }
+
+    private String getCloudletAddress(String key) {
+        ProvisioningClient cloudlet = appCloudlets.get(key);
+        return cloudlet != null ? cloudlet.getAddress() : "unknown";
+    }
+    /***** End handling provisioning requests *****************************************************/
+
+    /***** Begin handling cloudlet selection ****************************************************/
+    // Replaces the candidate list; entries are "host:port"
+    private void setCloudlets(String[] hostPorts) {
+        List<ProvisioningClient> candidates = new ArrayList<ProvisioningClient>();
+        for (String hostPort : hostPorts) {
+            ProvisioningClient cloudlet = getCloudlet(hostPort);
+            if (cloudlet != null) {
+                candidates.add(cloudlet);
+            }
+        }
+        if (candidates.isEmpty()) {
+            Log.w(LOG_TAG, "No valid cloudlet in the new candidate list, keeping the old one");
+            return;
+        }
+        cloudlets.clear();
+        cloudlets.addAll(candidates);
+        Log.i(LOG_TAG, "Using " + cloudlets.size() + " candidate cloudlets");
+    }
+
+    private ProvisioningClient getCloudlet(String hostPort) {
+        ProvisioningClient cloudlet = cloudletClients.get(hostPort);
+        if (cloudlet != null) {
+            return cloudlet;
+        }
+        int i = hostPort.lastIndexOf(':');
         try {
-            reader = new BufferedReader(new InputStreamReader(in));
-            String line = "";
-            while ((line = reader.readLine()) != null) {
-                response.append(line);
-            }
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error in reading response from server: " + e.getMessage());
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {}
+            cloudlet = new ProvisioningClient(hostPort.substring(0, i), Integer.parseInt(hostPort.substring(i + 1)));
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Invalid cloudlet address: " + hostPort);
+            return null;
+        }
+        ProvisioningClient old = cloudletClients.putIfAbsent(hostPort, cloudlet);
+        return old != null ? old : cloudlet;
+    }
+
+    // Probes all candidates in parallel and reports the choice to the apps it is made for
+    private ProvisioningClient selectCloudlet(List<String> appIds) {
+        List<ProvisioningClient> candidates = new ArrayList<ProvisioningClient>(cloudlets);
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        CloudletSelector.Selection selection = cloudletSelector.select(candidates);
+        ProvisioningClient chosen;
+        String message;
+        if (selection.best == null) {
+            Log.w(LOG_TAG, "No cloudlet answered the probes, using " + candidates.get(0).getAddress());
+            chosen = candidates.get(0);
+            message = chosen.getAddress() + " (no probe answered)";
+        } else {
+            chosen = selection.best.cloudlet;
+            message = selection.best + " in " + selection.elapsedMs + " ms; probes: " + selection.results;
+        }
+        for (String appId : appIds) {
+            CloudletEvent event = new CloudletEvent(CloudletEvent.Type.CLOUDLET_SELECTED);
+            event.appId = appId;
+            event.cloudlet = chosen.getAddress();
+            event.message = message;
+            callbackDispatcher.post(event, null);
+        }
+        return chosen;
+    }
+
+    private static class Handoff {
+        final ProvisioningClient from;
+        final ProvisioningClient to;
+
+        Handoff(ProvisioningClient from, ProvisioningClient to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private final Runnable placementCheck = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                provisioningExecutor.execute(PLACEMENT_CHECK_KEY, new Runnable() {
+                    @Override
+                    public void run() {
+                        reevaluatePlacement();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(LOG_TAG, "Skipped cloudlet placement check: " + e.getMessage());
             }
         }
-        return response.toString();
+    };
+
+    /**
+     * Probes all cloudlets again and starts a handoff for every provisioned app whose cloudlet is
+     * unreachable now, or slower than the best one by at least handoffMargin.
+     */
+    private void reevaluatePlacement() {
+        long margin = handoffMargin;
+        List<ProvisioningClient> candidates = new ArrayList<ProvisioningClient>(cloudlets);
+        if (margin < 0 || candidates.size() < 2) {
+            return;
+        }
+        Map<String, ProvisioningClient> placements = new HashMap<String, ProvisioningClient>();
+        synchronized (appProvisionings) {
+            for (Map.Entry<String, AppProvisioning> e : appProvisionings.entrySet()) {
+                AppProvisioning ap = e.getValue();
+                ProvisioningClient cloudlet = appCloudlets.get(e.getKey());
+                if (ap.vmIp != null && ap.users > 0 && cloudlet != null && !handoffs.containsKey(e.getKey())) {
+                    placements.put(e.getKey(), cloudlet);
+                }
+            }
+        }
+        if (placements.isEmpty()) {
+            return;
+        }
+
+        CloudletSelector.Selection selection = cloudletSelector.select(candidates);
+        if (selection.best == null) {
+            return;
+        }
+        for (Map.Entry<String, ProvisioningClient> e : placements.entrySet()) {
+            ProvisioningClient current = e.getValue();
+            if (current == selection.best.cloudlet) {
+                continue;
+            }
+            long currentRtt = Long.MAX_VALUE;
+            for (CloudletSelector.ProbeResult r : selection.results) {
+                if (r.cloudlet == current && r.isReachable) {
+                    currentRtt = r.rttMs;
+                }
+            }
+            if (currentRtt != Long.MAX_VALUE && currentRtt - selection.best.rttMs < margin) {
+                continue;
+            }
+            String key = e.getKey();
+            int i = key.indexOf('|');
+            startHandoff(key.substring(0, i), key.substring(i + 1), current, selection.best);
+        }
     }
-    /***** End handling http connections **********************************************************/
+
+    // Creates the VM of an app on a better cloudlet; the app is switched over once it is ready.
+    // The create runs on the scheduler's threads, so moving several apps does not fill the
+    // provisioning executor with blocking requests.
+    private void startHandoff(final String userId, final String appId, ProvisioningClient from,
+                              CloudletSelector.ProbeResult to) {
+        final String key = userId + "|" + appId;
+        Log.i(LOG_TAG, "Moving cloudlet VM of " + appId + " from " + from.getAddress() + " to " + to);
+        final Handoff handoff = new Handoff(from, to.cloudlet);
+        handoffs.put(key, handoff);
+        provisioningScheduler.runRequest(new Runnable() {
+            @Override
+            public void run() {
+                String response = handoff.to.post("create", appId, userId);
+                if (response == null) {
+                    Log.w(LOG_TAG, "Handoff of " + appId + " to " + handoff.to.getAddress() + " failed");
+                    handoffs.remove(key);
+                    return;
+                }
+                if (handoffs.get(key) != handoff) {
+                    // Released meanwhile; its delete may have reached the cloudlet before the create
+                    sendPostRequestAsync(handoff.to, "delete", appId, userId);
+                    return;
+                }
+                provisioningScheduler.start(handoff.to, userId, appId);
+            }
+        });
+    }
+
+    // Announces the new VM of an app in handoff and deletes the old one after a drain delay
+    private void finishHandoff(final String userId, final String appId, final Handoff handoff, String ip) {
+        String key = userId + "|" + appId;
+        String oldIp;
+        synchronized (appProvisionings) {
+            AppProvisioning ap = appProvisionings.get(key);
+            if (ap == null || ap.vmIp == null) {
+                oldIp = null;
+            } else {
+                oldIp = ap.vmIp;
+                ap.vmIp = ip;
+                ap.isAnnounced = true;
+            }
+        }
+        if (oldIp == null) {
+            // Released meanwhile
+            sendPostRequestAsync(handoff.to, "delete", appId, userId);
+            return;
+        }
+        appCloudlets.put(key, handoff.to);
+        vmIpCache.put(userId, appId, handoff.to.getAddress(), ip);
+        Log.i(LOG_TAG, "Switched cloudlet VM of " + appId + " to " + ip + " on " + handoff.to.getAddress());
+
+        if (socketPreconnector.hasPorts(key)) {
+            preconnect(key, ip);
+        }
+        CloudletEvent event = newAppEvent(CloudletEvent.Type.CLOUDLET_SWITCHED, key, appId, ip);
+        event.message = "from " + oldIp + " on " + handoff.from.getAddress();
+        callbackDispatcher.postCritical(event);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                sendPostRequestAsync(handoff.from, "delete", appId, userId);
+            }
+        }, HANDOFF_DRAIN_DELAY);
+    }
+    /***** End handling cloudlet selection ******************************************************/
 
     /***** Begin handling connection to OpenVPN service *******************************************/
     private void connectVpn() {
         Log.d(LOG_TAG, "++connectVpn");
 
         synchronized(vpnLock) {
-            // Check if VPN states are normal
-            if (vpnConnectionCounter < 0) {
-                Log.d(LOG_TAG, "A 'disconnectVpn' has been called before 'connectVpn'");
-                vpnConnectionCounter++;
-                return;
-            }
-            if (vpnConnectionCounter > 0) {
+            // A tunnel stopped from outside needs a full start, whatever the number of users
+            if (vpnConnectionCounter > 0 && isVpnStarted) {
                 Log.d(LOG_TAG, "Multiple Vpn connections are requested");
                 vpnConnectionCounter++;
+                resumeVpnLocked();
                 return;
             }
 
             vpnConnectionCounter++;
+            mHandler.removeCallbacks(vpnIdleTeardown);
+            if (isVpnStarted) {
+                Log.d(LOG_TAG, "Reusing idle Vpn connection");
+                resumeVpnLocked();
+                return;
+            }
+            startVpnLocked();
+        }
+    }
 
-            if (isUsingTestProfile) {
-                // Load testing client configuration file for OpenVPN
-                String configStr = "";
-                try {
-                    InputStream conf = getApplicationContext().getAssets().open("test.conf");
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(conf));
-                    //File confFile = new File(Environment.getExternalStorageDirectory(), "/CloudletLauncher/OpenVPN_client.conf");
-                    //BufferedReader reader = new BufferedReader(new FileReader(confFile));
-
-                    String line;
-                    while (true) {
-                        line = reader.readLine();
-                        if (line == null)
-                            break;
-                        configStr += line + "\n";
+    // Cold start of the tunnel; guarded by vpnLock
+    private void startVpnLocked() {
+        isVpnStarted = true;
+        isVpnPaused = false;
+        vpnStartCount++;
+        tVpnColdStart = System.currentTimeMillis();
+        tVpnResume = 0;
+
+        if (isUsingTestProfile) {
+            // Start connection using the test profile, registered on first use
+            runWithVpnService(new VpnServiceCall("startTestProfile") {
+                @Override
+                void run(IOpenVPNAPIService service) throws RemoteException {
+                    String uuid = getTestProfileUuid(service);
+                    if (uuid != null) {
+                        service.startProfile(uuid);
+                        return;
                     }
-                    reader.readLine();
-                } catch (IOException e) {
-                    Log.e(LOG_TAG, "Error reading .conf file: " + e.getMessage());
-                }
-
-                // Start connection using configuration file
-                if (mVpnService != null) {
-                    try {
-                        mVpnService.startVPN(configStr);
-                    } catch (RemoteException e) {
-                        Log.e(LOG_TAG, "Error in starting VPN connection: " + e.getMessage());
+                    String config = getTestVpnConfig();
+                    if (config == null) {
+                        return;
                     }
+                    Log.w(LOG_TAG, "Could not register test profile, starting it inline");
+                    service.startVPN(config);
                 }
-            } else {
-                // Start connection using pre-registered user profile
-                if (mVpnService != null) {
-                    try {
-                        mVpnService.startProfile(profileUuid);
-                    } catch (RemoteException e) {
-                        Log.e(LOG_TAG, "Error in starting VPN connection: " + e.getMessage());
+            });
+        } else {
+            // Start connection using pre-registered user profile
+            runWithVpnService(new VpnServiceCall("startProfile") {
+                @Override
+                void run(IOpenVPNAPIService service) throws RemoteException {
+                    String uuid = getVpnProfileUuid();
+                    if (uuid == null) {
+                        Log.w(LOG_TAG, "No '" + VPN_PROFILE_NAME + "' profile in OpenVPN client");
+                        return;
                     }
+                    service.startProfile(uuid);
                 }
-            }
+            });
         }
     }
 
@@ -370,8 +1376,7 @@ public class CloudletService extends Service {
 
         synchronized(vpnLock) {
             if (vpnConnectionCounter <= 0) {
-                Log.d(LOG_TAG, "A 'disconnectVpn' is called before a connection");
-                vpnConnectionCounter--;
+                Log.w(LOG_TAG, "A 'disconnectVpn' is called without a connection, ignoring it");
                 return;
             }
             if (vpnConnectionCounter > 1) {
@@ -382,16 +1387,138 @@ public class CloudletService extends Service {
 
             vpnConnectionCounter--;
 
-            if (mVpnService != null) {
-                try {
-                    mVpnService.disconnect();
-                } catch (SecurityException e) {
-                    Log.w(LOG_TAG, "The cloudletlauncher hasn't registered to OpenVPN client");
-                } catch (RemoteException e) {
-                    Log.e(LOG_TAG, "Error in disconnecting VPN service: " + e.getMessage());
+            Log.d(LOG_TAG, "Last Vpn user gone, tearing down in " + vpnIdleDelay + " ms unless reused");
+            mHandler.postDelayed(vpnIdleTeardown, vpnIdleDelay);
+        }
+        scheduleVpnPause();
+    }
+
+    // Pauses the tunnel after VPN_PAUSE_DELAY if it is still idle by then
+    private void scheduleVpnPause() {
+        mHandler.removeCallbacks(vpnIdlePause);
+        mHandler.postDelayed(vpnIdlePause, VPN_PAUSE_DELAY);
+    }
+
+    private final Runnable vpnIdlePause = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (vpnLock) {
+                if (!isVpnStarted || isVpnPaused || isTesting) {
+                    return;
                 }
+                if (vpnConnectionCounter > 0 && clientLeases.getLeaseCount() > 0) {
+                    return;
+                }
+                isVpnPaused = true;
+                vpnPauseCount++;
+                tVpnResume = 0;
+                Log.i(LOG_TAG, "Pausing idle Vpn connection");
+                runWithVpnService(new VpnServiceCall("pause") {
+                    @Override
+                    void run(IOpenVPNAPIService service) throws RemoteException {
+                        service.pause();
+                    }
+                });
             }
         }
+    };
+
+    // Resumes the tunnel if it is paused, for an app about to use it
+    private void resumeVpn() {
+        synchronized (vpnLock) {
+            mHandler.removeCallbacks(vpnIdlePause);
+            resumeVpnLocked();
+        }
+    }
+
+    private void resumeVpnLocked() {
+        if (!isVpnPaused) {
+            return;
+        }
+        isVpnPaused = false;
+        tVpnResume = System.currentTimeMillis();
+        Log.i(LOG_TAG, "Resuming paused Vpn connection");
+        runWithVpnService(new VpnServiceCall("resume") {
+            @Override
+            void run(IOpenVPNAPIService service) throws RemoteException {
+                service.resume();
+            }
+        });
+    }
+
+    private final Runnable vpnIdleTeardown = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (vpnLock) {
+                if (vpnConnectionCounter > 0 || !isVpnStarted) {
+                    return;
+                }
+                isVpnStarted = false;
+                isVpnPaused = false;
+                vpnIdleTeardownCount++;
+                Log.i(LOG_TAG, "Tearing down idle Vpn connection");
+                runWithVpnService(new VpnServiceCall("disconnect") {
+                    @Override
+                    void run(IOpenVPNAPIService service) throws RemoteException {
+                        service.disconnect();
+                    }
+                });
+            }
+        }
+    };
+
+    private Bundle getVpnStats() {
+        Bundle b = new Bundle();
+        synchronized (vpnLock) {
+            b.putInt("client_count", clientLeases.getClientCount());
+            b.putInt("lease_count", clientLeases.getLeaseCount());
+            b.putInt("tunnel_users", vpnConnectionCounter);
+            b.putBoolean("is_tunnel_up", isVpnConnected);
+            b.putLong("tunnel_uptime_ms", vpnUptime + (tVpnUp != 0 ? System.currentTimeMillis() - tVpnUp : 0));
+            b.putInt("tunnel_start_count", vpnStartCount);
+            b.putInt("idle_teardown_count", vpnIdleTeardownCount);
+            b.putBoolean("is_tunnel_paused", isVpnPaused);
+            b.putInt("pause_count", vpnPauseCount);
+            b.putLong("cold_connect_count", vpnColdConnectLatency.getCount());
+            b.putLong("cold_connect_p50_ms", vpnColdConnectLatency.getPercentile(50));
+            b.putLong("cold_connect_mean_ms", vpnColdConnectLatency.getMean());
+            b.putLong("resume_count", vpnResumeLatency.getCount());
+            b.putLong("resume_p50_ms", vpnResumeLatency.getPercentile(50));
+            b.putLong("resume_mean_ms", vpnResumeLatency.getMean());
+        }
+        return b;
+    }
+
+    private abstract class VpnServiceCall {
+        final String name;
+
+        VpnServiceCall(String name) {
+            this.name = name;
+        }
+
+        abstract void run(IOpenVPNAPIService service) throws RemoteException;
+    }
+
+    // Runs a call into the OpenVPN service now if it is bound, otherwise once it is
+    private void runWithVpnService(VpnServiceCall call) {
+        synchronized (vpnLock) {
+            if (mVpnService == null) {
+                Log.i(LOG_TAG, "OpenVPN service is not bound yet, queueing '" + call.name + "'");
+                pendingVpnCalls.addLast(call);
+                return;
+            }
+            invokeVpnService(call);
+        }
+    }
+
+    private void invokeVpnService(VpnServiceCall call) {
+        try {
+            call.run(mVpnService);
+        } catch (SecurityException e) {
+            Log.w(LOG_TAG, "The cloudletlauncher hasn't registered to OpenVPN client");
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, "Error in '" + call.name + "' on VPN service: " + e.getMessage());
+        }
     }
 
     private IOpenVPNStatusCallback mCallback = new IOpenVPNStatusCallback.Stub() {
@@ -399,8 +1526,47 @@ public class CloudletService extends Service {
         public void newStatus(String uuid, String state, String message, String level)
                 throws RemoteException {
             Log.d(LOG_TAG, state + "|" + message);
-            messageAllApps(state + "|" + message);
+            synchronized (vpnLock) {
+                boolean isConnected = state.equals("CONNECTED");
+                long now = System.currentTimeMillis();
+                if (isConnected && tVpnUp == 0) {
+                    tVpnUp = now;
+                } else if (!isConnected && tVpnUp != 0) {
+                    vpnUptime += now - tVpnUp;
+                    tVpnUp = 0;
+                }
+                isVpnConnected = isConnected;
+                if (state.equals("NOPROCESS") && isVpnStarted) {
+                    // Stopped by someone else; it must be started again for the next user
+                    isVpnStarted = false;
+                    isVpnPaused = false;
+                    if (vpnConnectionCounter > 0 && tVpnColdStart == 0) {
+                        // Apps still hold leases on the tunnel, so they need it back now. A start
+                        // that never got connected is not retried, so a failing profile cannot
+                        // loop; the next connectVpn starts it again.
+                        Log.i(LOG_TAG, "Vpn connection stopped while in use, restarting it");
+                        startVpnLocked();
+                    }
+                }
+                if (isConnected && tVpnResume != 0) {
+                    vpnResumeLatency.record(now - tVpnResume);
+                    tVpnResume = 0;
+                } else if (isConnected && tVpnColdStart != 0) {
+                    vpnColdConnectLatency.record(now - tVpnColdStart);
+                    tVpnColdStart = 0;
+                }
+            }
+            CloudletEvent event = new CloudletEvent(CloudletEvent.Type.VPN_STATE);
+            event.state = state;
+            event.message = message;
+            callbackDispatcher.post(event, COALESCE_VPN_STATE);
             if (state.equals("CONNECTED")) {
+                synchronized (vpnLock) {
+                    if (tVpnStart != 0) {
+                        recordEarlyPhase(vpnStartKey, ProvisioningStats.PHASE_VPN_CONNECTED, System.currentTimeMillis() - tVpnStart);
+                        tVpnStart = 0;
+                    }
+                }
                 Message msg = Message.obtain();
                 msg.what = MSG_VPN_CONNECTED;
                 mHandler.sendMessage(msg);
@@ -411,62 +1577,295 @@ public class CloudletService extends Service {
     private ServiceConnection mConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName className, IBinder service) {
             // This is called when the connection with the service has been established
-            mVpnService = IOpenVPNAPIService.Stub.asInterface(service);
+            synchronized (vpnLock) {
+                mVpnService = IOpenVPNAPIService.Stub.asInterface(service);
+            }
+            invalidateVpnProfiles();
+            forgetTestProfile();
 
             try {
                 mVpnService.registerStatusCallback(mCallback);
                 isVpnServiceReady = true;
                 Log.i(LOG_TAG, "Connected to OpenVPN service and callback registered");
+                refreshVpnProfiles();
 
                 // Tell all the apps that "I'm ready"
-                int n = callbackList.beginBroadcast();
-                for(int i = 0; i < n; i++) {
-                    try {
-                        callbackList.getBroadcastItem(i).amReady();
-                    } catch (RemoteException e) {
-                        // RemoteCallbackList will take care of removing dead objects
-                    }
-                }
-                callbackList.finishBroadcast();
+                callbackDispatcher.postCritical(new CloudletEvent(CloudletEvent.Type.SERVICE_READY));
             } catch (SecurityException e) {
                 Log.w(LOG_TAG, "The cloudletlauncher needs to register to OpenVPN client first!");
             } catch (RemoteException e) {
                 Log.e(LOG_TAG, "Error in registering callback to OpenVPN service: " + e.getMessage());
             }
+
+            synchronized (vpnLock) {
+                if (!pendingVpnCalls.isEmpty()) {
+                    Log.i(LOG_TAG, "Running " + pendingVpnCalls.size() + " queued OpenVPN calls");
+                }
+                while (!pendingVpnCalls.isEmpty()) {
+                    invokeVpnService(pendingVpnCalls.pollFirst());
+                }
+            }
         }
 
         public void onServiceDisconnected(ComponentName className) {
             // This is called when the connection with the service has been
             // unexpectedly disconnected -- that is, its process crashed.
-            mVpnService = null;
+            synchronized (vpnLock) {
+                mVpnService = null;
+            }
+            isVpnServiceReady = false;
+            invalidateVpnProfiles();
+            forgetTestProfile();
         }
     };
     /***** End handling connection to OpenVPN service *********************************************/
 
     /***** Begin helper functions *****************************************************************/
-    private void messageAllApps(String message) {
-        int n = callbackList.beginBroadcast();
-        for(int i = 0; i < n; i++) {
-            try {
-                callbackList.getBroadcastItem(i).message(message);
-            } catch (RemoteException e) {
-                // RemoteCallbackList will take care of removing dead objects
+    private void postError(String appId, String message) {
+        CloudletEvent event = new CloudletEvent(CloudletEvent.Type.ERROR);
+        event.appId = appId;
+        event.message = message;
+        callbackDispatcher.post(event, null);
+    }
+
+    // Events a subscribed app wants; null appIds means all apps. Events not about an app always match.
+    private static class Subscription {
+        // CloudletEvent.ALL_TYPES used to be -1; clients built then know the types up to ERROR only
+        private static final int LEGACY_ALL_TYPES = (CloudletEvent.Type.ERROR.mask() << 1) - 1;
+
+        final Set<String> appIds;
+        final int typeMask;
+
+        Subscription(String[] appIds, int typeMask) {
+            this.appIds = (appIds == null || appIds.length == 0) ? null : new HashSet<String>(Arrays.asList(appIds));
+            this.typeMask = typeMask == -1 ? LEGACY_ALL_TYPES : typeMask;
+        }
+
+        boolean matches(CloudletEvent event) {
+            return (typeMask & event.type.mask()) != 0
+                    && (appIds == null || event.appId == null || appIds.contains(event.appId));
+        }
+    }
+
+    // Broadcasts a batch of events to all apps, on the dispatcher thread
+    private final CallbackDispatcher.Sink<CloudletEvent> callbackSink = new CallbackDispatcher.Sink<CloudletEvent>() {
+        @Override
+        public void deliver(List<CallbackDispatcher.Event<CloudletEvent>> events) {
+            int n = callbackList.beginBroadcast();
+            for (CallbackDispatcher.Event<CloudletEvent> e : events) {
+                CloudletEvent event = e.payload;
+                String legacyMessage = toLegacyMessage(event);
+                for (int i = 0; i < n; i++) {
+                    try {
+                        ICloudletServiceCallback cb = callbackList.getBroadcastItem(i);
+                        Object cookie = callbackList.getBroadcastCookie(i);
+                        if (cookie instanceof Subscription) {
+                            if (((Subscription) cookie).matches(event)) {
+                                cb.onEvent(event);
+                            }
+                        } else if (event.type == CloudletEvent.Type.SERVER_IP
+                                || event.type == CloudletEvent.Type.CLOUDLET_SWITCHED) {
+                            cb.newServerIP(event.vmIp);
+                        } else if (event.type == CloudletEvent.Type.SERVICE_READY) {
+                            cb.amReady();
+                        } else if (legacyMessage != null) {
+                            cb.message(legacyMessage);
+                        }
+                    } catch (RemoteException ex) {
+                        // RemoteCallbackList will take care of removing dead objects
+                    }
+                }
+            }
+            callbackList.finishBroadcast();
+
+            long now = System.currentTimeMillis();
+            for (CallbackDispatcher.Event<CloudletEvent> e : events) {
+                if (e.payload.type == CloudletEvent.Type.SERVER_IP) {
+                    recordAnnounced(userId + "|" + e.payload.appId, now - e.tPosted);
+                }
+            }
+        }
+    };
+
+    // "STATE|message" string of an event for apps using the message callback, or null if they never got it
+    private static String toLegacyMessage(CloudletEvent event) {
+        switch (event.type) {
+            case VPN_STATE:
+                return event.state + "|" + event.message;
+            case CLOUDLET_SELECTED:
+                return "CLOUDLET_SELECTED|" + event.message;
+            case ERROR:
+                return "ERROR|" + event.message;
+            default:
+                return null;
+        }
+    }
+
+    // The IP is announced once the tunnel is (or already was) connected
+    private void onVmIpKnown(String userId, String appId, String ip) {
+        setProvisioningResult(userId, appId, ip);
+        callbackDispatcher.post(newAppEvent(CloudletEvent.Type.VM_READY, userId + "|" + appId, appId, ip), null);
+        requestAnnouncement();
+    }
+
+    // Takes a VPN connection reference for an app, timing the handshake
+    private void startVpn(String key) {
+        long tStart = System.currentTimeMillis();
+        synchronized (vpnLock) {
+            if (!isVpnConnected && tVpnStart == 0) {
+                tVpnStart = tStart;
+                vpnStartKey = key;
             }
         }
-        callbackList.finishBroadcast();
+        connectVpn();
+        recordEarlyPhase(key, ProvisioningStats.PHASE_CONNECT_VPN, System.currentTimeMillis() - tStart);
     }
 
+    private void requestAnnouncement() {
+        if (isVpnConnected) {
+            Message msg = Message.obtain();
+            msg.what = MSG_VPN_CONNECTED;
+            mHandler.sendMessage(msg);
+        }
+    }
+
+    // Cached UUID of the cloudlet profile; the OpenVPN service is only asked again if the cache is stale
     private String getVpnProfileUuid() {
-        List<APIVpnProfile> profileList = null;
+        synchronized (profileLock) {
+            if (isProfileCacheValid && (cachedProfileUuid != null
+                    || System.currentTimeMillis() - tProfileRefresh < PROFILE_MISS_REFRESH_PERIOD)) {
+                return cachedProfileUuid;
+            }
+        }
+        return refreshVpnProfiles();
+    }
+
+    private String refreshVpnProfiles() {
+        IOpenVPNAPIService service = mVpnService;
+        if (service == null) {
+            // Refreshed once the service is bound
+            return null;
+        }
+        List<APIVpnProfile> profileList;
         try {
-            profileList = mVpnService.getProfiles();
-        } catch (RemoteException e) {}
+            profileList = service.getProfiles();
+        } catch (SecurityException e) {
+            Log.w(LOG_TAG, "The cloudletlauncher hasn't registered to OpenVPN client");
+            return null;
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, "Error in listing VPN profiles: " + e.getMessage());
+            return null;
+        }
 
-        for (APIVpnProfile p : profileList) {
-            Log.d(LOG_TAG, "New profile item. UUID: " + p.mUUID + ", name: " + p.mName);
-            if (p.mName.equals("cloudlet")) return p.mUUID;
+        String uuid = null;
+        if (profileList != null) {
+            for (APIVpnProfile p : profileList) {
+                Log.d(LOG_TAG, "New profile item. UUID: " + p.mUUID + ", name: " + p.mName);
+                if (VPN_PROFILE_NAME.equals(p.mName)) {
+                    uuid = p.mUUID;
+                    break;
+                }
+            }
+        }
+        synchronized (profileLock) {
+            cachedProfileUuid = uuid;
+            isProfileCacheValid = true;
+            tProfileRefresh = System.currentTimeMillis();
+        }
+        return uuid;
+    }
+
+    // Test client configuration for OpenVPN, read from the assets once
+    private String getTestVpnConfig() {
+        synchronized (profileLock) {
+            if (testVpnConfig != null) {
+                return testVpnConfig;
+            }
+            StringBuilder config = new StringBuilder();
+            BufferedReader reader = null;
+            try {
+                InputStream conf = getApplicationContext().getAssets().open(TEST_VPN_CONFIG_ASSET);
+                reader = new BufferedReader(new InputStreamReader(conf));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    config.append(line).append('\n');
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error reading .conf file: " + e.getMessage());
+                return null;
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {}
+                }
+            }
+            testVpnConfig = config.toString();
+            return testVpnConfig;
+        }
+    }
+
+    /**
+     * UUID of the OpenVPN profile holding the test configuration. The first call after binding
+     * looks the profile up, registering it (and removing profiles of older test configurations)
+     * if needed; later calls return the UUID right away.
+     * @return null if the configuration could not be read or registered
+     */
+    private String getTestProfileUuid(IOpenVPNAPIService service) throws RemoteException {
+        synchronized (profileLock) {
+            if (testProfileUuid != null) {
+                return testProfileUuid;
+            }
+        }
+        String config = getTestVpnConfig();
+        if (config == null) {
+            return null;
+        }
+        String name = TEST_VPN_PROFILE_PREFIX + Integer.toHexString(config.hashCode());
+
+        String uuid = null;
+        boolean isChanged = false;
+        List<APIVpnProfile> profileList = service.getProfiles();
+        if (profileList != null) {
+            for (APIVpnProfile p : profileList) {
+                if (name.equals(p.mName)) {
+                    uuid = p.mUUID;
+                } else if (p.mName != null && p.mName.startsWith(TEST_VPN_PROFILE_PREFIX)) {
+                    Log.i(LOG_TAG, "Removing outdated test profile " + p.mName);
+                    service.removeProfile(p.mUUID);
+                    isChanged = true;
+                }
+            }
+        }
+        if (uuid == null) {
+            APIVpnProfile profile = service.addNewVPNProfile(name, false, config);
+            if (profile != null) {
+                Log.i(LOG_TAG, "Registered test profile " + name + ": " + profile.mUUID);
+                uuid = profile.mUUID;
+                isChanged = true;
+            }
+        }
+        if (isChanged) {
+            invalidateVpnProfiles();
+        }
+        synchronized (profileLock) {
+            testProfileUuid = uuid;
+        }
+        return uuid;
+    }
+
+    // To be called when the OpenVPN binding changes, so the test profile is looked up again
+    private void forgetTestProfile() {
+        synchronized (profileLock) {
+            testProfileUuid = null;
+        }
+    }
+
+    // To be called when the OpenVPN binding changes, or after adding or removing a profile
+    private void invalidateVpnProfiles() {
+        synchronized (profileLock) {
+            isProfileCacheValid = false;
         }
-        return null;
     }
     /***** End helper functions *******************************************************************/
 
@@ -474,10 +1873,14 @@ public class CloudletService extends Service {
         public void handleMessage(Message msg) {
             if (msg.what == MSG_POST_DONE) {
                 PostMsgWrapper p = (PostMsgWrapper) msg.obj;
-                if (p.action.equals("create")) {
-                    final Timer pollingTimer = new Timer();
-                    StatusCheckTask pollingTask = new StatusCheckTask(p.userId, p.appId, pollingTimer);
-                    pollingTimer.schedule(pollingTask, 10000, 3000);
+                if (p.action.equals("create") && p.appIds != null) {
+                    for (String appId : p.appIds) {
+                        setPollStart(p.userId + "|" + appId);
+                    }
+                    provisioningScheduler.startBatch(p.cloudlet, p.userId, p.appIds);
+                } else if (p.action.equals("create")) {
+                    setPollStart(p.userId + "|" + p.appId);
+                    provisioningScheduler.start(p.cloudlet, p.userId, p.appId);
                 }
             }
             if (msg.what == MSG_VPN_CONNECTED) {
@@ -485,43 +1888,81 @@ public class CloudletService extends Service {
                     Log.d(LOG_TAG, "Not broadcasting new IP because running in testing mode.");
                     // do nothing
                 } else {
-                    int n = callbackList.beginBroadcast();
-                    for (int i = 0; i < n; i++) {
-                        try {
-                            callbackList.getBroadcastItem(i).newServerIP(vmIp);
-                        } catch (RemoteException e) {
-                            // RemoteCallbackList will take care of removing dead objects
-                        }
+                    // Only IPs of VMs that are ready; the tunnel may come up before any VM is
+                    Map<String, String> ips = takeUnannouncedIps();
+                    for (Map.Entry<String, String> e : ips.entrySet()) {
+                        String appId = e.getKey().substring(e.getKey().indexOf('|') + 1);
+                        announceWhenConnected(e.getKey(), appId, e.getValue());
                     }
-                    callbackList.finishBroadcast();
                 }
             }
         }
     };
 
-    class StatusCheckTask extends TimerTask  {
-        String userId;
-        String appId;
-        Timer timer;
-
-        public StatusCheckTask(String userId, String appId, Timer timer) {
-            this.userId = userId;
-            this.appId = appId;
-            this.timer = timer;
+    // Broadcasts the IP of an app, once the ports it registered are connected (or failed to)
+    private void announceWhenConnected(final String key, final String appId, final String ip) {
+        if (!socketPreconnector.hasPorts(key)) {
+            callbackDispatcher.postCritical(newAppEvent(CloudletEvent.Type.SERVER_IP, key, appId, ip));
+            return;
         }
+        runForApp("preconnect", appId, new Runnable() {
+            @Override
+            public void run() {
+                preconnect(key, ip);
+                callbackDispatcher.postCritical(newAppEvent(CloudletEvent.Type.SERVER_IP, key, appId, ip));
+            }
+        });
+    }
 
+    private void preconnect(String key, String ip) {
+        long tStart = System.currentTimeMillis();
+        socketPreconnector.connect(key, ip);
+        recordPhase(key, ProvisioningStats.PHASE_PRECONNECT, System.currentTimeMillis() - tStart);
+    }
+
+    private ProvisioningScheduler.Listener provisioningListener = new ProvisioningScheduler.Listener() {
         @Override
-        public void run() {
-            String response = sendGetRequest("http://" + cloudletIP + ":" + cloudletPort + "?user_id=" + this.userId + "&app_id=" + this.appId);
-            Log.d(LOG_TAG, response);
-            if (response != null && !response.equals("None")) {
-                if (!response.equals("Error")) {
-                    Log.i(LOG_TAG, "Got cloudlet VM IP: " + response);
-                    vmIp = response;
+        public void onVmReady(String userId, String appId, String response) {
+            Handoff handoff = handoffs.remove(userId + "|" + appId);
+            if (handoff != null) {
+                if (response.equals(ProvisioningClient.RESPONSE_ERROR)) {
+                    Log.w(LOG_TAG, "Handoff of " + appId + " failed, keeping VM on " + handoff.from.getAddress());
+                } else {
+                    finishHandoff(userId, appId, handoff, response);
                 }
-                this.timer.cancel();
-                connectVpn();
+                return;
+            }
+            if (response.equals(ProvisioningClient.RESPONSE_ERROR)) {
+                Log.e(LOG_TAG, "Cloudlet failed to create VM for " + appId);
+                setProvisioningResult(userId, appId, null);
+                postError(appId, "Cloudlet failed to create VM for " + appId);
+                return;
             }
+            Log.i(LOG_TAG, "Got cloudlet VM IP: " + response);
+            String key = userId + "|" + appId;
+            long tPollStart = getPollStart(key);
+            if (tPollStart != 0) {
+                // Also recorded per cloudlet by the scheduler
+                noteLatency(key, ProvisioningStats.PHASE_VM_READY, System.currentTimeMillis() - tPollStart);
+            }
+            ProvisioningClient cloudlet = appCloudlets.get(userId + "|" + appId);
+            if (cloudlet != null) {
+                vmIpCache.put(userId, appId, cloudlet.getAddress(), response);
+            }
+            onVmIpKnown(userId, appId, response);
         }
-    }
+
+        @Override
+        public void onSessionExpired(String userId, String appId) {
+            Handoff handoff = handoffs.remove(userId + "|" + appId);
+            if (handoff != null) {
+                Log.w(LOG_TAG, "Handoff of " + appId + " timed out, keeping VM on " + handoff.from.getAddress());
+                sendPostRequestAsync(handoff.to, "delete", appId, userId);
+                return;
+            }
+            Log.e(LOG_TAG, "Cloudlet VM for " + appId + " was not ready in time");
+            setProvisioningResult(userId, appId, null);
+            postError(appId, "Cloudlet VM for " + appId + " was not ready in time");
+        }
+    };
 }
@@ -0,0 +1,96 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+/**
+ * Fixed-size latency histogram with log-spaced buckets.
+ *
+ * Buckets grow by about 25% each from 1 ms up to about 45 minutes, so percentiles are accurate to
+ * within one bucket width and memory does not depend on the number of samples.
+ */
+public class LatencyHistogram {
+    private static final double BUCKET_GROWTH = 1.25;
+    private static final int BUCKET_COUNT = 64;
+
+    // Upper bounds (inclusive) of the buckets in ms; the last bucket also holds larger values
+    private static final long[] BUCKET_BOUNDS = new long[BUCKET_COUNT];
+    static {
+        double bound = 1;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            BUCKET_BOUNDS[i] = (long) Math.ceil(bound);
+            bound = Math.max(bound * BUCKET_GROWTH, BUCKET_BOUNDS[i] + 1);
+        }
+    }
+
+    // Guarded by this
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    public synchronized void record(long ms) {
+        ms = Math.max(0, ms);
+        counts[bucketOf(ms)]++;
+        count++;
+        sum += ms;
+        max = Math.max(max, ms);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket holding the given percentile (capped at the maximum, which
+     * is also used for the overflow bucket), or 0 if nothing was recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return i == BUCKET_COUNT - 1 ? max : Math.min(BUCKET_BOUNDS[i], max);
+            }
+        }
+        return max;
+    }
+
+    private static int bucketOf(long ms) {
+        int lo = 0;
+        int hi = BUCKET_COUNT - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ms <= BUCKET_BOUNDS[mid]) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+}
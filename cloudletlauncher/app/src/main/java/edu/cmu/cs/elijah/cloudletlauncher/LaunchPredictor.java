@@ -0,0 +1,137 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-network history of app launches, used to guess which apps are about to be launched.
+ *
+ * Each (network, app) pair has a launch score that decays exponentially with a fixed half-life,
+ * so apps launched every day on a network score high there and apps not used for a while fade out.
+ * Scores are persisted in shared preferences as "score|timestamp" under "network|appId".
+ */
+public class LaunchPredictor {
+    private static final String SEPARATOR = "|";
+
+    // Scores below this are dropped
+    private static final double MIN_KEPT_SCORE = 0.05;
+
+    // null to keep the history in memory only
+    private final SharedPreferences prefs;
+    private final long halfLife;
+
+    // Keyed by "network|appId"; guarded by this
+    private final Map<String, Score> scores = new HashMap<String, Score>();
+
+    private static class Score {
+        final double value;
+        final long timestamp;
+
+        Score(double value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public LaunchPredictor(SharedPreferences prefs, long halfLife) {
+        this.prefs = prefs;
+        this.halfLife = halfLife;
+        if (prefs == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+            Score score = parse(e.getValue());
+            if (score != null && decay(score, now) >= MIN_KEPT_SCORE) {
+                scores.put(e.getKey(), score);
+            } else {
+                editor.remove(e.getKey());
+            }
+        }
+        editor.apply();
+    }
+
+    public synchronized void recordLaunch(String network, String appId, long now) {
+        String key = network + SEPARATOR + appId;
+        Score old = scores.get(key);
+        Score score = new Score((old == null ? 0 : decay(old, now)) + 1, now);
+        scores.put(key, score);
+        if (prefs != null) {
+            prefs.edit().putString(key, score.value + SEPARATOR + score.timestamp).apply();
+        }
+    }
+
+    /**
+     * @return up to max apps launched on the network, most likely first, whose score is at least minScore
+     */
+    public synchronized List<String> getLikelyApps(String network, int max, double minScore, long now) {
+        String prefix = network + SEPARATOR;
+        final Map<String, Double> candidates = new HashMap<String, Double>();
+        for (Map.Entry<String, Score> e : scores.entrySet()) {
+            String key = e.getKey();
+            if (key.lastIndexOf(SEPARATOR) != prefix.length() - 1 || !key.startsWith(prefix)) {
+                continue;
+            }
+            double value = decay(e.getValue(), now);
+            if (value >= minScore) {
+                candidates.put(key.substring(prefix.length()), value);
+            }
+        }
+
+        List<String> apps = new ArrayList<String>(candidates.keySet());
+        Collections.sort(apps, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(candidates.get(b), candidates.get(a));
+            }
+        });
+        return apps.size() > max ? new ArrayList<String>(apps.subList(0, max)) : apps;
+    }
+
+    public synchronized double getScore(String network, String appId, long now) {
+        Score score = scores.get(network + SEPARATOR + appId);
+        return score == null ? 0 : decay(score, now);
+    }
+
+    private double decay(Score score, long now) {
+        long age = Math.max(0, now - score.timestamp);
+        return score.value * Math.pow(0.5, age / (double) halfLife);
+    }
+
+    private static Score parse(Object value) {
+        if (!(value instanceof String)) {
+            return null;
+        }
+        String[] fields = ((String) value).split("\\" + SEPARATOR);
+        if (fields.length != 2) {
+            return null;
+        }
+        try {
+            return new Score(Double.parseDouble(fields[0]), Long.parseLong(fields[1]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -40,6 +40,7 @@ import android.widget.EditText;
 import android.widget.TextView;
 
 import de.blinkt.openvpn.api.IOpenVPNAPIService;
+import edu.cmu.cs.elijah.cloudletlauncher.api.CloudletEvent;
 import edu.cmu.cs.elijah.cloudletlauncher.api.ICloudletService;
 import edu.cmu.cs.elijah.cloudletlauncher.api.ICloudletServiceCallback;
 
@@ -257,6 +258,12 @@ public class MainActivity extends Activity {
             msg.obj = "New server IP:" + IP_addr;
             mHandler.sendMessage(msg);
         }
+        public void onEvent(CloudletEvent event) throws RemoteException {
+            Message msg = Message.obtain();
+            msg.what = MSG_STATUS;
+            msg.obj = event.toString();
+            mHandler.sendMessage(msg);
+        }
     };
 
     private ServiceConnection mCloudletConnection = new ServiceConnection() {
@@ -0,0 +1,628 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 client for the cloudlet provisioning API.
+ *
+ * Connections to the provisioning server are kept alive and reused across requests, so periodic
+ * status queries do not pay a TCP handshake each time. Response bodies are read into pooled,
+ * size-capped byte buffers and the status line and headers are parsed in place; the only string
+ * created per response is the returned body, and the common "None"/"Error"/"OK" answers are
+ * returned as shared constants.
+ */
+public class ProvisioningClient {
+    private static final String LOG_TAG = "ProvisioningClient";
+
+    public static final String RESPONSE_NOT_READY = "None";
+    public static final String RESPONSE_ERROR = "Error";
+    public static final String RESPONSE_OK = "OK";
+
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 15000;
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long MAX_IDLE_TIME = 30000;
+
+    // Headers and bodies larger than this are rejected
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private static final byte[] HEADER_CONTENT_LENGTH = ascii("content-length:");
+    private static final byte[] HEADER_TRANSFER_ENCODING_CHUNKED = ascii("transfer-encoding: chunked");
+    private static final byte[] HEADER_CONNECTION_CLOSE = ascii("connection: close");
+    private static final byte[] BYTES_NOT_READY = ascii(RESPONSE_NOT_READY);
+    private static final byte[] BYTES_ERROR = ascii(RESPONSE_ERROR);
+    private static final byte[] BYTES_OK = ascii(RESPONSE_OK);
+
+    private final String host;
+    private final int port;
+    private final String hostHeader;
+
+    // Guarded by themselves
+    private final ArrayDeque<Connection> idleConnections = new ArrayDeque<Connection>();
+    private final ArrayDeque<byte[]> bufferPool = new ArrayDeque<byte[]>();
+
+    private final AtomicInteger openedConnections = new AtomicInteger();
+    private volatile boolean isClosed = false;
+
+    public ProvisioningClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.hostHeader = host + ":" + port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    // "host:port" of the provisioning server
+    public String getAddress() {
+        return hostHeader;
+    }
+
+    /**
+     * Sends a provisioning action ("create" or "delete") for an app.
+     * @return the response body, or null if the request failed
+     */
+    public String post(String action, String appId, String userId) {
+        String query = "user_id=" + encode(userId) + "&app_id=" + encode(appId) + "&action=" + encode(action);
+        return execute("POST", "/", query, READ_TIMEOUT, false, null);
+    }
+
+    /**
+     * Queries the VM status of an app. If waitSeconds is positive the server may hold the
+     * request until the VM is ready (long poll).
+     * @return the VM IP, "None", "Error", or null if the request failed
+     */
+    public String getStatus(String userId, String appId, int waitSeconds) {
+        return getStatus(userId, appId, waitSeconds, null);
+    }
+
+    /**
+     * Like {@link #getStatus(String, String, int)}, abortable through call (which may be null).
+     */
+    public String getStatus(String userId, String appId, int waitSeconds, Call call) {
+        String path = "/?user_id=" + encode(userId) + "&app_id=" + encode(appId);
+        if (waitSeconds > 0) {
+            path += "&wait=" + waitSeconds;
+        }
+        return execute("GET", path, null, READ_TIMEOUT + waitSeconds * 1000, false, call);
+    }
+
+    /**
+     * Sends a provisioning action for several apps in one request, with the apps as a
+     * comma-separated "app_ids" list.
+     * @return the response body ("OK" if the server handled the batch), or null if the request failed
+     */
+    public String postBatch(String action, List<String> appIds, String userId) {
+        String query = "user_id=" + encode(userId) + "&app_ids=" + encodeList(appIds) + "&action=" + encode(action);
+        return execute("POST", "/", query, READ_TIMEOUT, false, null);
+    }
+
+    /**
+     * Queries the VM status of several apps in one request ("?user_id=..&app_ids=a,b[&wait=s]").
+     * The server answers one "appId=status" line per app, status being as for {@link #getStatus}.
+     * If waitSeconds is positive the server may hold the request until any of the VMs is ready.
+     * @return the status of each app, an empty map if the server does not answer batch queries,
+     * or null if the request failed
+     */
+    public Map<String, String> getStatuses(String userId, List<String> appIds, int waitSeconds) {
+        return getStatuses(userId, appIds, waitSeconds, null);
+    }
+
+    /**
+     * Like {@link #getStatuses(String, List, int)}, abortable through call (which may be null).
+     */
+    public Map<String, String> getStatuses(String userId, List<String> appIds, int waitSeconds, Call call) {
+        String path = "/?user_id=" + encode(userId) + "&app_ids=" + encodeList(appIds);
+        if (waitSeconds > 0) {
+            path += "&wait=" + waitSeconds;
+        }
+        String response = execute("GET", path, null, READ_TIMEOUT + waitSeconds * 1000, false, call);
+        if (response == null) {
+            return null;
+        }
+        // Parsed in place, as this runs on every batch poll: keys are the requested app IDs and
+        // the usual statuses are the shared constants, so only the IPs of ready VMs are new strings
+        Map<String, String> statuses = new HashMap<String, String>();
+        int len = response.length();
+        for (int start = 0; start < len; ) {
+            int end = response.indexOf('\n', start);
+            if (end < 0) end = len;
+            int eq = response.indexOf('=', start);
+            if (eq > start && eq < end) {
+                statuses.put(appIdAt(response, start, eq, appIds), statusAt(response, eq + 1, end));
+            } else if (!isBlank(response, start, end)) {
+                // Not a batch answer
+                return new HashMap<String, String>();
+            }
+            start = end + 1;
+        }
+        return statuses;
+    }
+
+    /**
+     * Asks the server for its current load ("GET /load", answered with a number; lower is better).
+     * The request always goes over a new connection, so its duration includes the TCP handshake
+     * whether or not the server was contacted recently, and can be compared across servers.
+     * @param call to abort the request (may be null)
+     * @return the response body (empty if the server does not report load), or null if the server
+     * could not be reached
+     */
+    public String getLoad(Call call) {
+        return execute("GET", "/load", null, READ_TIMEOUT, true, call);
+    }
+
+    // Number of TCP connections opened so far
+    public int getConnectionCount() {
+        return openedConnections.get();
+    }
+
+    public void close() {
+        isClosed = true;
+        synchronized (idleConnections) {
+            for (Connection c : idleConnections) {
+                c.close();
+            }
+            idleConnections.clear();
+        }
+    }
+
+    /**
+     * Handle of one request, to abort it from another thread while it is in flight. Aborting closes
+     * its connection, so a request the server is holding (such as a long poll) fails right away
+     * instead of keeping its thread until the server answers.
+     */
+    public static class Call {
+        // Guarded by this
+        private Connection connection = null;
+        private boolean isAborted = false;
+
+        public void abort() {
+            Connection c;
+            synchronized (this) {
+                isAborted = true;
+                c = connection;
+            }
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        public synchronized boolean isAborted() {
+            return isAborted;
+        }
+
+        // Both return false if the call has already been aborted
+        private synchronized boolean attach(Connection c) {
+            if (isAborted) return false;
+            connection = c;
+            return true;
+        }
+
+        private synchronized boolean detach() {
+            connection = null;
+            return !isAborted;
+        }
+    }
+
+    // With isProbe set, a new connection is used, any HTTP status counts as an answer and non-200
+    // responses give ""
+    private String execute(String method, String path, String body, int readTimeout, boolean isProbe, Call call) {
+        byte[] request;
+        try {
+            StringBuilder sb = new StringBuilder(128);
+            sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: ").append(hostHeader)
+                    .append("\r\nConnection: keep-alive\r\n");
+            byte[] bodyBytes = null;
+            if (body != null) {
+                bodyBytes = body.getBytes("UTF-8");
+                sb.append("Content-Type: application/x-www-form-urlencoded\r\nContent-Length: ")
+                        .append(bodyBytes.length).append("\r\n");
+            }
+            sb.append("\r\n");
+            byte[] head = sb.toString().getBytes("UTF-8");
+            if (bodyBytes == null) {
+                request = head;
+            } else {
+                request = new byte[head.length + bodyBytes.length];
+                System.arraycopy(head, 0, request, 0, head.length);
+                System.arraycopy(bodyBytes, 0, request, head.length, bodyBytes.length);
+            }
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+
+        // A pooled connection may have been closed by the server in the meantime; retry once on a new one
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Connection conn = null;
+            try {
+                conn = borrowConnection(isProbe || attempt > 0);
+                if (call != null && !call.attach(conn)) {
+                    releaseConnection(conn);
+                    return null;
+                }
+                String response = conn.exchange(request, readTimeout, isProbe);
+                if (call == null || call.detach()) {
+                    releaseConnection(conn);
+                } else {
+                    conn.close();
+                }
+                return response;
+            } catch (StaleConnectionException e) {
+                conn.close();
+            } catch (IOException e) {
+                if (conn != null) {
+                    conn.close();
+                }
+                if (call == null || !call.isAborted()) {
+                    Log.e(LOG_TAG, "Error in sending " + method + " request: " + e.getMessage());
+                }
+                return null;
+            } finally {
+                if (call != null) {
+                    call.detach();
+                }
+            }
+        }
+        return null;
+    }
+
+    private Connection borrowConnection(boolean forceNew) throws IOException {
+        if (!forceNew) {
+            long now = System.currentTimeMillis();
+            synchronized (idleConnections) {
+                Connection c;
+                while ((c = idleConnections.pollLast()) != null) {
+                    if (now - c.lastUsed < MAX_IDLE_TIME) {
+                        return c;
+                    }
+                    c.close();
+                }
+            }
+        }
+        openedConnections.incrementAndGet();
+        return new Connection();
+    }
+
+    private void releaseConnection(Connection c) {
+        if (!c.isReusable || isClosed) {
+            c.close();
+            return;
+        }
+        c.lastUsed = System.currentTimeMillis();
+        synchronized (idleConnections) {
+            if (idleConnections.size() < MAX_IDLE_CONNECTIONS) {
+                idleConnections.addLast(c);
+                return;
+            }
+        }
+        c.close();
+    }
+
+    private byte[] obtainBuffer() {
+        synchronized (bufferPool) {
+            byte[] b = bufferPool.pollLast();
+            if (b != null) return b;
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    private void recycleBuffer(byte[] b) {
+        synchronized (bufferPool) {
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.addLast(b);
+            }
+        }
+    }
+
+    // Thrown when a reused connection turns out to be closed before any response byte arrives
+    private static class StaleConnectionException extends IOException {}
+
+    private class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long lastUsed;
+        boolean isReusable = true;
+        private int requestCount = 0;
+
+        Connection() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            in = new BufferedInputStream(socket.getInputStream(), 1024);
+            out = socket.getOutputStream();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+
+        String exchange(byte[] request, int readTimeout, boolean isProbe) throws IOException {
+            boolean mayBeStale = requestCount++ > 0;
+            socket.setSoTimeout(readTimeout);
+            try {
+                out.write(request);
+                out.flush();
+            } catch (IOException e) {
+                if (mayBeStale) throw new StaleConnectionException();
+                throw e;
+            }
+
+            byte[] buf = obtainBuffer();
+            try {
+                // Status line
+                int len = readLine(buf, 0);
+                if (len < 0) {
+                    if (mayBeStale) throw new StaleConnectionException();
+                    throw new IOException("Connection closed by server");
+                }
+                int status = parseStatusCode(buf, len);
+                boolean isHttp10 = len >= 8 && buf[7] == '0';
+
+                // Headers
+                int contentLength = -1;
+                boolean isChunked = false;
+                isReusable = !isHttp10;
+                while ((len = readLine(buf, 0)) > 0) {
+                    if (startsWithIgnoreCase(buf, len, HEADER_CONTENT_LENGTH)) {
+                        contentLength = parseInt(buf, HEADER_CONTENT_LENGTH.length, len);
+                    } else if (startsWithIgnoreCase(buf, len, HEADER_TRANSFER_ENCODING_CHUNKED)) {
+                        isChunked = true;
+                    } else if (startsWithIgnoreCase(buf, len, HEADER_CONNECTION_CLOSE)) {
+                        isReusable = false;
+                    }
+                }
+                if (len < 0) {
+                    throw new IOException("Truncated response headers");
+                }
+
+                // Body
+                int bodyLength;
+                if (isChunked) {
+                    bodyLength = readChunkedBody(buf);
+                } else if (contentLength >= 0) {
+                    if (contentLength > buf.length) {
+                        throw new IOException("Response body too large: " + contentLength);
+                    }
+                    readFully(buf, 0, contentLength);
+                    bodyLength = contentLength;
+                } else {
+                    // No framing: the body runs until the server closes the connection
+                    isReusable = false;
+                    bodyLength = readUntilEof(buf);
+                }
+
+                if (status != 200) {
+                    if (isProbe) return "";
+                    Log.w(LOG_TAG, "Provisioning server returned status " + status);
+                    return null;
+                }
+                return bodyToString(buf, bodyLength);
+            } catch (IOException e) {
+                isReusable = false;
+                throw e;
+            } finally {
+                recycleBuffer(buf);
+            }
+        }
+
+        private void readFully(byte[] buf, int offset, int length) throws IOException {
+            while (length > 0) {
+                int n = in.read(buf, offset, length);
+                if (n < 0) throw new IOException("Truncated response body");
+                offset += n;
+                length -= n;
+            }
+        }
+
+        private int readUntilEof(byte[] buf) throws IOException {
+            int len = 0;
+            int n;
+            while ((n = in.read(buf, len, buf.length - len)) > 0) {
+                len += n;
+                if (len == buf.length && in.read() != -1) {
+                    throw new IOException("Response body too large");
+                }
+            }
+            return len;
+        }
+
+        private int readChunkedBody(byte[] buf) throws IOException {
+            // Chunk sizes are read into the tail of the same buffer to avoid another allocation
+            int bodyLength = 0;
+            while (true) {
+                int sizeLen = readLine(buf, bodyLength);
+                if (sizeLen < 0) throw new IOException("Truncated chunked body");
+                int chunkSize = parseHex(buf, bodyLength, bodyLength + sizeLen);
+                if (chunkSize == 0) break;
+                if (bodyLength + chunkSize > buf.length) {
+                    throw new IOException("Response body too large");
+                }
+                readFully(buf, bodyLength, chunkSize);
+                bodyLength += chunkSize;
+                if (readLine(buf, bodyLength) != 0) throw new IOException("Malformed chunk");
+            }
+            // Trailers
+            int len;
+            while ((len = readLine(buf, bodyLength)) > 0) {}
+            if (len < 0) throw new IOException("Truncated chunked body");
+            return bodyLength;
+        }
+
+        // Reads one CRLF-terminated line into buf at offset; returns its length without the
+        // terminator, or -1 at end of stream
+        private int readLine(byte[] buf, int offset) throws IOException {
+            int len = 0;
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    if (len > 0 && buf[offset + len - 1] == '\r') len--;
+                    return len;
+                }
+                if (offset + len == buf.length) {
+                    throw new IOException("Response line too long");
+                }
+                buf[offset + len++] = (byte) c;
+            }
+            return -1;
+        }
+    }
+
+    /***** Begin parsing helpers ******************************************************************/
+    private static int parseStatusCode(byte[] buf, int len) throws IOException {
+        // "HTTP/1.x NNN ..."
+        if (len < 12 || buf[0] != 'H' || buf[8] != ' ') {
+            throw new IOException("Malformed status line");
+        }
+        return parseInt(buf, 9, 12);
+    }
+
+    private static int parseInt(byte[] buf, int from, int to) throws IOException {
+        int value = 0;
+        boolean hasDigit = false;
+        for (int i = from; i < to; i++) {
+            byte b = buf[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                hasDigit = true;
+            } else if (b != ' ' && b != '\t') {
+                break;
+            }
+        }
+        if (!hasDigit) throw new IOException("Malformed number in response");
+        return value;
+    }
+
+    private static int parseHex(byte[] buf, int from, int to) throws IOException {
+        int value = 0;
+        boolean hasDigit = false;
+        for (int i = from; i < to; i++) {
+            int d = Character.digit(buf[i], 16);
+            if (d < 0) break;  // chunk extensions
+            value = value * 16 + d;
+            hasDigit = true;
+        }
+        if (!hasDigit) throw new IOException("Malformed chunk size");
+        return value;
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] buf, int len, byte[] prefix) {
+        if (len < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            int b = buf[i];
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static String bodyToString(byte[] buf, int len) throws IOException {
+        int start = 0;
+        while (start < len && buf[start] <= ' ') start++;
+        while (len > start && buf[len - 1] <= ' ') len--;
+        if (matches(buf, start, len, BYTES_NOT_READY)) return RESPONSE_NOT_READY;
+        if (matches(buf, start, len, BYTES_ERROR)) return RESPONSE_ERROR;
+        if (matches(buf, start, len, BYTES_OK)) return RESPONSE_OK;
+        return new String(buf, start, len - start, "UTF-8");
+    }
+
+    private static boolean matches(byte[] buf, int from, int to, byte[] expected) {
+        if (to - from != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (buf[from + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    // The requested app ID equal to s[from, to), so that a known app needs no new key string
+    private static String appIdAt(String s, int from, int to, List<String> appIds) {
+        for (String appId : appIds) {
+            if (regionEquals(s, from, to, appId)) return appId;
+        }
+        return s.substring(from, to);
+    }
+
+    // The trimmed status in s[from, to), as for bodyToString
+    private static String statusAt(String s, int from, int to) {
+        while (from < to && s.charAt(from) <= ' ') from++;
+        while (to > from && s.charAt(to - 1) <= ' ') to--;
+        if (regionEquals(s, from, to, RESPONSE_NOT_READY)) return RESPONSE_NOT_READY;
+        if (regionEquals(s, from, to, RESPONSE_ERROR)) return RESPONSE_ERROR;
+        return s.substring(from, to);
+    }
+
+    private static boolean regionEquals(String s, int from, int to, String expected) {
+        return to - from == expected.length() && s.startsWith(expected, from);
+    }
+
+    private static boolean isBlank(String s, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) > ' ') return false;
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String encodeList(List<String> items) {
+        StringBuilder sb = new StringBuilder();
+        for (String item : items) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(encode(item));
+        }
+        return sb.toString();
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+    /***** End parsing helpers ********************************************************************/
+}
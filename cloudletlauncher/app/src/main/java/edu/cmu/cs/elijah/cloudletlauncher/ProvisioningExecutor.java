@@ -0,0 +1,189 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor for provisioning operations (create/delete POSTs) with per-app ordering.
+ *
+ * Operations submitted with the same key run one at a time in submission order, while operations
+ * for different keys run in parallel on a fixed number of threads. The number of queued operations
+ * is bounded, and queue depth and queueing delay are tracked so head-of-line blocking is visible.
+ */
+public class ProvisioningExecutor {
+    private static final String LOG_TAG = "ProvisioningExecutor";
+
+    // Operations waiting longer than this are logged
+    private static final long SLOW_WAIT_THRESHOLD = 1000;
+
+    private final ThreadPoolExecutor pool;
+    private final int maxPending;
+
+    // Pending operations per key; a key is present while a runner for it is scheduled or running
+    private final Map<String, ArrayDeque<Operation>> queues = new HashMap<String, ArrayDeque<Operation>>();
+
+    // Guarded by queues
+    private int pendingCount = 0;
+    private long startedCount = 0;
+    private long totalWaitTime = 0;
+    private long maxWaitTime = 0;
+
+    public ProvisioningExecutor(int threadCount, int maxPending) {
+        this.maxPending = maxPending;
+        pool = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ProvisioningExecutor-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Runs an operation after all operations previously submitted with the same key.
+     * @throws RejectedExecutionException if too many operations are already queued
+     */
+    public void execute(String key, Runnable task) {
+        boolean isNewKey;
+        synchronized (queues) {
+            if (pendingCount >= maxPending) {
+                throw new RejectedExecutionException("Too many queued provisioning operations: " + pendingCount);
+            }
+            ArrayDeque<Operation> queue = queues.get(key);
+            isNewKey = (queue == null);
+            if (isNewKey) {
+                queue = new ArrayDeque<Operation>();
+                queues.put(key, queue);
+            }
+            queue.addLast(new Operation(task));
+            pendingCount++;
+        }
+        if (isNewKey) {
+            pool.execute(new KeyRunner(key));
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    // Number of operations submitted but not started yet
+    public int getQueueDepth() {
+        synchronized (queues) {
+            return pendingCount;
+        }
+    }
+
+    public long getMaxWaitTime() {
+        synchronized (queues) {
+            return maxWaitTime;
+        }
+    }
+
+    public long getAverageWaitTime() {
+        synchronized (queues) {
+            return startedCount == 0 ? 0 : totalWaitTime / startedCount;
+        }
+    }
+
+    // "queue_depth", "mean_wait" and "max_wait" (all longs, wait times in ms)
+    public Bundle toBundle() {
+        Bundle b = new Bundle();
+        synchronized (queues) {
+            b.putLong("queue_depth", pendingCount);
+            b.putLong("mean_wait", startedCount == 0 ? 0 : totalWaitTime / startedCount);
+            b.putLong("max_wait", maxWaitTime);
+        }
+        return b;
+    }
+
+    private static class Operation {
+        final Runnable task;
+        final long tSubmit;
+
+        Operation(Runnable task) {
+            this.task = task;
+            this.tSubmit = System.currentTimeMillis();
+        }
+    }
+
+    // Runs one operation of a key, then yields the thread and reschedules itself if more are queued
+    private class KeyRunner implements Runnable {
+        private final String key;
+
+        KeyRunner(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Operation op;
+            long waitTime;
+            synchronized (queues) {
+                op = queues.get(key).pollFirst();
+                pendingCount--;
+                waitTime = System.currentTimeMillis() - op.tSubmit;
+                startedCount++;
+                totalWaitTime += waitTime;
+                maxWaitTime = Math.max(maxWaitTime, waitTime);
+            }
+            if (waitTime > SLOW_WAIT_THRESHOLD) {
+                Log.w(LOG_TAG, "Operation for " + key + " waited " + waitTime + " ms in queue");
+            }
+
+            try {
+                op.task.run();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Error in provisioning operation for " + key + ": " + e.getMessage());
+            } finally {
+                // Even after an Error, so the key's later operations are not stuck without a runner
+                runNext();
+            }
+        }
+
+        private void runNext() {
+            boolean hasMore;
+            synchronized (queues) {
+                hasMore = !queues.get(key).isEmpty();
+                if (!hasMore) {
+                    queues.remove(key);
+                }
+            }
+            if (hasMore) {
+                try {
+                    pool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Shut down
+                }
+            }
+        }
+    }
+}
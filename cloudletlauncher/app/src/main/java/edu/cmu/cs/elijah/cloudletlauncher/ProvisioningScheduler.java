@@ -0,0 +1,534 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Waits for cloudlet VMs of all provisioning sessions on one shared, fixed-size thread pool.
+ *
+ * Each session first long-polls the server (see {@link VmReadinessWatcher}). If that is not
+ * supported, it falls back to polling with exponential backoff plus jitter. A session ends when
+ * the VM is ready, when its deadline passes, or when it is cancelled.
+ *
+ * Long polls are held by the server, so they run on a separate pool of at most
+ * LONG_POLL_POOL_SIZE threads and never delay the polls of other sessions. Sessions beyond that
+ * bound poll on the shared pool instead. Cancelling a session aborts its request in flight.
+ *
+ * Several apps provisioned together can share one batch session, which asks for the status of all
+ * of them in a single request per poll.
+ */
+public class ProvisioningScheduler {
+    private static final String LOG_TAG = "ProvisioningScheduler";
+
+    // Long polls are held by the server for up to LONG_POLL_WAIT seconds each
+    private static final int LONG_POLL_WAIT = 20;
+    private static final int POOL_SIZE = 4;
+    private static final int LONG_POLL_POOL_SIZE = 16;
+    private static final long LONG_POLL_KEEP_ALIVE = 30000;
+    private static final int BACKOFF_FACTOR = 2;
+    private static final double JITTER = 0.2;
+
+    public interface Listener {
+        // Called with the VM IP, or with "Error" if the server failed to create the VM
+        void onVmReady(String userId, String appId, String response);
+
+        void onSessionExpired(String userId, String appId);
+    }
+
+    private final Listener listener;
+    private final long pollingInitialDelay;
+    private final long pollingBasePeriod;
+    private final long pollingMaxPeriod;
+    private final long sessionTimeout;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ThreadPoolExecutor longPollExecutor;
+    private final Random random = new Random();
+
+    // Sessions keyed by "userId|appId"; a batch session is registered under each of its apps
+    private final Map<String, Waiter> sessions = new HashMap<String, Waiter>();
+
+    private final AtomicInteger pollCount = new AtomicInteger();
+
+    // Optional; receives the duration of status polls and of waiting for VMs
+    private volatile ProvisioningStats stats = null;
+
+    /**
+     * @param pollingInitialDelay delay (counted from session start) before the first fallback poll
+     * @param pollingBasePeriod delay after the first unsuccessful poll, doubled after each one
+     * @param pollingMaxPeriod upper bound of the delay between two polls
+     * @param sessionTimeout time after which a session gives up waiting for the VM
+     */
+    public ProvisioningScheduler(Listener listener, long pollingInitialDelay,
+                                 long pollingBasePeriod, long pollingMaxPeriod, long sessionTimeout) {
+        this.listener = listener;
+        this.pollingInitialDelay = pollingInitialDelay;
+        this.pollingBasePeriod = pollingBasePeriod;
+        this.pollingMaxPeriod = pollingMaxPeriod;
+        this.sessionTimeout = sessionTimeout;
+
+        executor = new ScheduledThreadPoolExecutor(POOL_SIZE, newThreadFactory("Provisioning-"));
+        // No queue: a long poll (or other blocking request) either gets a thread right away or is rejected
+        longPollExecutor = new ThreadPoolExecutor(0, LONG_POLL_POOL_SIZE, LONG_POLL_KEEP_ALIVE,
+                TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), newThreadFactory("LongPoll-"));
+    }
+
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Starts waiting for the VM of (userId, appId), replacing any session already running for it.
+     */
+    public void start(ProvisioningClient client, String userId, String appId) {
+        Session session = new Session(client, userId, appId);
+        Waiter old;
+        synchronized (sessions) {
+            old = sessions.put(session.key, session);
+        }
+        if (old != null) {
+            old.cancel(session.key);
+        }
+        session.start();
+    }
+
+    /**
+     * Starts waiting for the VMs of several apps of userId, all hosted by the same cloudlet, with one
+     * status request per poll for all of them. Each VM is reported through the listener as soon as
+     * it is ready. Falls back to one session per app if the server does not answer batch queries.
+     */
+    public void startBatch(ProvisioningClient client, String userId, List<String> appIds) {
+        BatchSession batch = new BatchSession(client, userId, appIds);
+        List<Waiter> olds = new ArrayList<Waiter>();
+        List<String> oldKeys = new ArrayList<String>();
+        synchronized (sessions) {
+            for (String appId : batch.pending) {
+                String key = userId + "|" + appId;
+                Waiter old = sessions.put(key, batch);
+                if (old != null) {
+                    olds.add(old);
+                    oldKeys.add(key);
+                }
+            }
+        }
+        for (int i = 0; i < olds.size(); i++) {
+            olds.get(i).cancel(oldKeys.get(i));
+        }
+        batch.schedule(0);
+    }
+
+    /**
+     * Runs a blocking request to a cloudlet, such as a create, on the scheduler's threads, so it holds
+     * neither the caller's thread nor a thread of the provisioning executor.
+     */
+    public void runRequest(Runnable request) {
+        try {
+            longPollExecutor.execute(request);
+        } catch (RejectedExecutionException e) {
+            try {
+                executor.execute(request);
+            } catch (RejectedExecutionException e2) {
+                Log.w(LOG_TAG, "Dropped request, scheduler is shut down");
+            }
+        }
+    }
+
+    /**
+     * Stops waiting for the VM of (userId, appId).
+     * @return whether a session was running
+     */
+    public boolean cancel(String userId, String appId) {
+        String key = userId + "|" + appId;
+        Waiter session;
+        synchronized (sessions) {
+            session = sessions.remove(key);
+        }
+        if (session == null) {
+            return false;
+        }
+        session.cancel(key);
+        return true;
+    }
+
+    public void setStats(ProvisioningStats stats) {
+        this.stats = stats;
+    }
+
+    public void shutdown() {
+        synchronized (sessions) {
+            for (Map.Entry<String, Waiter> e : sessions.entrySet()) {
+                e.getValue().cancel(e.getKey());
+            }
+            sessions.clear();
+        }
+        executor.shutdownNow();
+        longPollExecutor.shutdownNow();
+    }
+
+    public int getSessionCount() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    // Number of fallback status polls sent so far, over all sessions
+    public int getPollCount() {
+        return pollCount.get();
+    }
+
+    // Largest number of threads ever used by the scheduler for fallback polls
+    public int getLargestThreadCount() {
+        return executor.getLargestPoolSize();
+    }
+
+    // Number of long polls in flight
+    public int getActiveLongPollCount() {
+        return longPollExecutor.getActiveCount();
+    }
+
+    private long nextPollDelay(int pollIndex) {
+        long delay = pollingBasePeriod;
+        for (int i = 0; i < pollIndex && delay < pollingMaxPeriod; i++) {
+            delay *= BACKOFF_FACTOR;
+        }
+        delay = Math.min(delay, pollingMaxPeriod);
+        double jitter;
+        synchronized (random) {
+            jitter = 1 - JITTER + 2 * JITTER * random.nextDouble();
+        }
+        return (long) (delay * jitter);
+    }
+
+    private interface Waiter {
+        // Stops waiting for the VM registered under key ("userId|appId")
+        void cancel(String key);
+    }
+
+    private class Session implements Waiter, Runnable, VmReadinessWatcher.Listener {
+        final String key;
+        final ProvisioningClient client;
+        final String userId;
+        final String appId;
+        final long tStart;
+        final long deadline;
+
+        // Guarded by this
+        private VmReadinessWatcher watcher = null;
+        private Future<?> future = null;
+        private int pollIndex = 0;
+        private boolean isDone = false;
+
+        Session(ProvisioningClient client, String userId, String appId) {
+            this.key = userId + "|" + appId;
+            this.client = client;
+            this.userId = userId;
+            this.appId = appId;
+            this.tStart = System.currentTimeMillis();
+            this.deadline = tStart + sessionTimeout;
+        }
+
+        synchronized void start() {
+            if (isDone) return;
+            watcher = new VmReadinessWatcher(client, userId, appId, LONG_POLL_WAIT, sessionTimeout, this);
+            try {
+                future = longPollExecutor.submit(watcher);
+            } catch (RejectedExecutionException e) {
+                Log.i(LOG_TAG, "Too many long polls, polling for " + key);
+                watcher = null;
+                future = executor.schedule(this, pollingInitialDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        public void cancel(String key) {
+            cancel();
+        }
+
+        synchronized void cancel() {
+            isDone = true;
+            if (watcher != null) {
+                watcher.cancel();
+            }
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        // Marks the session as finished; returns false if it had already been finished or cancelled
+        private boolean finish() {
+            synchronized (this) {
+                if (isDone) return false;
+                isDone = true;
+            }
+            synchronized (sessions) {
+                if (sessions.get(key) == this) {
+                    sessions.remove(key);
+                }
+            }
+            return true;
+        }
+
+        private synchronized void schedulePoll(long delay) {
+            if (isDone) return;
+            future = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onVmReady(String userId, String appId, String response) {
+            if (finish()) {
+                ProvisioningStats s = stats;
+                if (s != null && !response.equals(ProvisioningClient.RESPONSE_ERROR)) {
+                    s.record(client.getAddress(), ProvisioningStats.PHASE_VM_READY, System.currentTimeMillis() - tStart);
+                }
+                listener.onVmReady(userId, appId, response);
+            }
+        }
+
+        @Override
+        public void onLongPollUnsupported(String userId, String appId, long elapsedMs) {
+            schedulePoll(Math.max(0, pollingInitialDelay - elapsedMs));
+        }
+
+        // One fallback status poll
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (isDone) return;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                Log.w(LOG_TAG, "Gave up waiting for VM of " + key);
+                if (finish()) {
+                    listener.onSessionExpired(userId, appId);
+                }
+                return;
+            }
+
+            pollCount.incrementAndGet();
+            long tPoll = System.currentTimeMillis();
+            String response = client.getStatus(userId, appId, 0);
+            ProvisioningStats s = stats;
+            if (s != null) {
+                s.record(client.getAddress(), ProvisioningStats.PHASE_STATUS_POLL, System.currentTimeMillis() - tPoll);
+            }
+            Log.d(LOG_TAG, "Status of " + key + ": " + response);
+            if (response != null && !response.equals(ProvisioningClient.RESPONSE_NOT_READY)) {
+                onVmReady(userId, appId, response);
+                return;
+            }
+
+            long delay;
+            synchronized (this) {
+                delay = nextPollDelay(pollIndex++);
+            }
+            schedulePoll(Math.min(delay, Math.max(0, deadline - System.currentTimeMillis())));
+        }
+    }
+
+    private class BatchSession implements Waiter, Runnable {
+        final ProvisioningClient client;
+        final String userId;
+        final long tStart;
+        final long deadline;
+
+        // Guarded by this
+        final Set<String> pending;
+        private Future<?> future = null;
+        private boolean isLongPoll = true;
+        private int pollIndex = 0;
+        private boolean isDone = false;
+
+        private final ProvisioningClient.Call call = new ProvisioningClient.Call();
+
+        BatchSession(ProvisioningClient client, String userId, List<String> appIds) {
+            this.client = client;
+            this.userId = userId;
+            this.tStart = System.currentTimeMillis();
+            this.deadline = tStart + sessionTimeout;
+            this.pending = new LinkedHashSet<String>(appIds);
+        }
+
+        // Drops one app from the batch; the batch stops once no app is left
+        @Override
+        public synchronized void cancel(String key) {
+            pending.remove(key.substring(key.indexOf('|') + 1));
+            if (pending.isEmpty()) {
+                isDone = true;
+                call.abort();
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        }
+
+        // Long polls start right away on the long poll pool, or fall back to polling if it is full
+        private synchronized void schedule(long delay) {
+            if (isDone) return;
+            if (isLongPoll) {
+                try {
+                    future = longPollExecutor.submit(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    Log.i(LOG_TAG, "Too many long polls, polling for " + userId + "|" + pending);
+                    isLongPoll = false;
+                    delay = pollingInitialDelay;
+                }
+            }
+            future = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        // Removes an app from the batch; returns false if it had already been finished or cancelled
+        private boolean finish(String appId) {
+            String key = userId + "|" + appId;
+            synchronized (this) {
+                if (!pending.remove(appId)) return false;
+                if (pending.isEmpty()) {
+                    isDone = true;
+                }
+            }
+            synchronized (sessions) {
+                if (sessions.get(key) == this) {
+                    sessions.remove(key);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            long delay;
+            while (true) {
+                delay = poll();
+                synchronized (this) {
+                    if (delay < 0 || isDone) return;
+                    // A long poll that goes on keeps this thread instead of being resubmitted
+                    if (!isLongPoll) break;
+                }
+            }
+            schedule(delay);
+        }
+
+        // One status request for all pending apps; returns the delay before the next one, or -1
+        // if the batch has ended
+        private long poll() {
+            List<String> appIds;
+            boolean isLongPollNow;
+            synchronized (this) {
+                if (isDone) return -1;
+                appIds = new ArrayList<String>(pending);
+                isLongPollNow = isLongPoll;
+            }
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                Log.w(LOG_TAG, "Gave up waiting for VMs of " + userId + "|" + appIds);
+                for (String appId : appIds) {
+                    if (finish(appId)) {
+                        listener.onSessionExpired(userId, appId);
+                    }
+                }
+                return -1;
+            }
+
+            int wait = 0;
+            if (isLongPollNow) {
+                wait = (int) Math.min(LONG_POLL_WAIT, (deadline - now) / 1000);
+                if (wait < 1) {
+                    // Too close to the deadline to let the server hold a request; poll until then
+                    isLongPollNow = false;
+                    synchronized (this) {
+                        isLongPoll = false;
+                    }
+                }
+            }
+            if (!isLongPollNow) {
+                pollCount.incrementAndGet();
+            }
+            Map<String, String> statuses = client.getStatuses(userId, appIds, wait, call);
+            long elapsed = System.currentTimeMillis() - now;
+            ProvisioningStats s = stats;
+            if (s != null && !isLongPollNow) {
+                s.record(client.getAddress(), ProvisioningStats.PHASE_STATUS_POLL, elapsed);
+            }
+
+            if (statuses != null && statuses.isEmpty()) {
+                Log.i(LOG_TAG, "Batch status not supported by " + client.getAddress() + ", polling apps one by one");
+                for (String appId : appIds) {
+                    if (finish(appId)) {
+                        start(client, userId, appId);
+                    }
+                }
+                return -1;
+            }
+
+            boolean isAnyReady = false;
+            if (statuses != null) {
+                for (String appId : appIds) {
+                    String response = statuses.get(appId);
+                    if (response == null || response.equals(ProvisioningClient.RESPONSE_NOT_READY)) {
+                        continue;
+                    }
+                    isAnyReady = true;
+                    if (finish(appId)) {
+                        if (s != null && !response.equals(ProvisioningClient.RESPONSE_ERROR)) {
+                            s.record(client.getAddress(), ProvisioningStats.PHASE_VM_READY, System.currentTimeMillis() - tStart);
+                        }
+                        listener.onVmReady(userId, appId, response);
+                    }
+                }
+            }
+
+            long delay;
+            synchronized (this) {
+                if (isLongPoll) {
+                    if (isAnyReady || (statuses != null && elapsed >= wait * 1000L / 2)) {
+                        // The server held the request, so keep long polling
+                        delay = 0;
+                    } else {
+                        isLongPoll = false;
+                        delay = Math.max(0, pollingInitialDelay - (System.currentTimeMillis() - tStart));
+                    }
+                } else {
+                    delay = nextPollDelay(pollIndex++);
+                }
+            }
+            return Math.min(delay, Math.max(0, deadline - System.currentTimeMillis()));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.os.Bundle;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Latency of each provisioning phase, kept as one {@link LatencyHistogram} per (cloudlet, phase).
+ */
+public class ProvisioningStats {
+    // POST create (and delete) round trip
+    public static final String PHASE_POST_CREATE = "post_create";
+    public static final String PHASE_POST_DELETE = "post_delete";
+    // One fallback status poll
+    public static final String PHASE_STATUS_POLL = "status_poll";
+    // From the start of status checking to the first response other than "None"
+    public static final String PHASE_VM_READY = "vm_ready";
+    // The connectVpn call itself
+    public static final String PHASE_CONNECT_VPN = "connect_vpn";
+    // From connectVpn to the OpenVPN CONNECTED status
+    public static final String PHASE_VPN_CONNECTED = "vpn_connected";
+    // Opening the ports an app registered for preconnection, before its IP is broadcast
+    public static final String PHASE_PRECONNECT = "preconnect";
+    // From posting newServerIP to the end of its broadcast to all apps
+    public static final String PHASE_BROADCAST = "broadcast";
+    // From findCloudlet to the newServerIP broadcast
+    public static final String PHASE_TOTAL = "total";
+
+    // Key of the provisioning executor's queue stats in the bundle given to clients, next to the cloudlets
+    public static final String KEY_EXECUTOR = "executor";
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    // Keyed by cloudlet "host:port", then by phase; guarded by itself
+    private final Map<String, Map<String, LatencyHistogram>> histograms =
+            new HashMap<String, Map<String, LatencyHistogram>>();
+
+    public void record(String cloudlet, String phase, long ms) {
+        LatencyHistogram histogram;
+        synchronized (histograms) {
+            Map<String, LatencyHistogram> phases = histograms.get(cloudlet);
+            if (phases == null) {
+                phases = new HashMap<String, LatencyHistogram>();
+                histograms.put(cloudlet, phases);
+            }
+            histogram = phases.get(phase);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                phases.put(phase, histogram);
+            }
+        }
+        histogram.record(ms);
+    }
+
+    public LatencyHistogram get(String cloudlet, String phase) {
+        synchronized (histograms) {
+            Map<String, LatencyHistogram> phases = histograms.get(cloudlet);
+            return phases == null ? null : phases.get(phase);
+        }
+    }
+
+    /**
+     * Snapshot of all histograms: one bundle per cloudlet, holding one bundle per phase with
+     * "count", "mean", "p50", "p90", "p99" and "max" (all longs, in ms).
+     */
+    public Bundle toBundle() {
+        Bundle result = new Bundle();
+        synchronized (histograms) {
+            for (Map.Entry<String, Map<String, LatencyHistogram>> cloudlet : histograms.entrySet()) {
+                Bundle phases = new Bundle();
+                for (Map.Entry<String, LatencyHistogram> phase : cloudlet.getValue().entrySet()) {
+                    LatencyHistogram h = phase.getValue();
+                    Bundle b = new Bundle();
+                    b.putLong("count", h.getCount());
+                    b.putLong("mean", h.getMean());
+                    for (double p : PERCENTILES) {
+                        b.putLong("p" + (int) p, h.getPercentile(p));
+                    }
+                    b.putLong("max", h.getMax());
+                    phases.putBundle(phase.getKey(), b);
+                }
+                result.putBundle(cloudlet.getKey(), phases);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,222 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP connections to the VMs of apps, opened by the launcher ahead of the apps.
+ *
+ * Apps register the ports they will use. Once the VM of an app is reachable, all its ports are
+ * connected in parallel, so the app can take over ready connections instead of opening them after
+ * it learns the IP. A connection is only handed out if it is still connected, was made to the
+ * app's current VM, and is younger than a maximum age.
+ */
+public class SocketPreconnector {
+    private static final String LOG_TAG = "SocketPreconnector";
+
+    private final ThreadPoolExecutor pool;
+    private final int connectTimeout;
+    private final long maxAge;
+
+    // Keyed by "userId|appId"; guarded by this
+    private final Map<String, int[]> appPorts = new HashMap<String, int[]>();
+    private final Map<String, Connections> appConnections = new HashMap<String, Connections>();
+
+    private static class Connections {
+        final String ip;
+        final long tConnected;
+        final Map<Integer, Socket> sockets = new HashMap<Integer, Socket>();
+
+        Connections(String ip) {
+            this.ip = ip;
+            this.tConnected = System.currentTimeMillis();
+        }
+
+        void close() {
+            for (Socket socket : sockets.values()) {
+                closeQuietly(socket);
+            }
+            sockets.clear();
+        }
+    }
+
+    /**
+     * @param maxParallelConnects number of connections that may be opened at the same time
+     * @param connectTimeout timeout of each connection attempt
+     * @param maxAge connections not taken within this time are not handed out anymore
+     */
+    public SocketPreconnector(int maxParallelConnects, int connectTimeout, long maxAge) {
+        this.connectTimeout = connectTimeout;
+        this.maxAge = maxAge;
+        pool = new ThreadPoolExecutor(maxParallelConnects, maxParallelConnects, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Preconnect-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    // Ports to connect for an app; null or empty to stop preconnecting for it
+    public synchronized void setPorts(String key, int[] ports) {
+        if (ports == null || ports.length == 0) {
+            appPorts.remove(key);
+        } else {
+            appPorts.put(key, ports.clone());
+        }
+    }
+
+    public synchronized boolean hasPorts(String key) {
+        return appPorts.containsKey(key);
+    }
+
+    /**
+     * Connects all registered ports of an app to ip in parallel, replacing its older connections.
+     * Blocks until every port is connected or has failed.
+     * @return the number of ports connected
+     */
+    public int connect(String key, String ip) {
+        int[] ports;
+        synchronized (this) {
+            ports = appPorts.get(key);
+        }
+        if (ports == null) {
+            return 0;
+        }
+
+        long tStart = System.currentTimeMillis();
+        List<Future<Socket>> futures = new ArrayList<Future<Socket>>();
+        for (int port : ports) {
+            final InetSocketAddress address = new InetSocketAddress(ip, port);
+            futures.add(pool.submit(new Callable<Socket>() {
+                @Override
+                public Socket call() throws IOException {
+                    return open(address);
+                }
+            }));
+        }
+        Connections connections = new Connections(ip);
+        for (int i = 0; i < ports.length; i++) {
+            try {
+                connections.sockets.put(ports[i], futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.w(LOG_TAG, "Could not preconnect to " + ip + ":" + ports[i] + ": " + e.getCause());
+            }
+        }
+        Log.i(LOG_TAG, "Preconnected " + connections.sockets.size() + "/" + ports.length + " ports of " + key
+                + " in " + (System.currentTimeMillis() - tStart) + " ms");
+
+        Connections old;
+        synchronized (this) {
+            old = appConnections.put(key, connections);
+        }
+        if (old != null) {
+            old.close();
+        }
+        return connections.sockets.size();
+    }
+
+    /**
+     * Hands over the connection of an app to a port; the caller owns the returned socket.
+     * @return null if there is no healthy connection to the port of the app's VM at ip
+     */
+    public Socket take(String key, String ip, int port) {
+        Socket socket;
+        synchronized (this) {
+            Connections connections = appConnections.get(key);
+            if (connections == null || !connections.ip.equals(ip)) {
+                return null;
+            }
+            socket = connections.sockets.remove(port);
+            if (socket != null && System.currentTimeMillis() - connections.tConnected > maxAge) {
+                Log.i(LOG_TAG, "Preconnected socket to " + ip + ":" + port + " is too old");
+                closeQuietly(socket);
+                return null;
+            }
+        }
+        if (socket == null || socket.isClosed() || !socket.isConnected() || socket.isInputShutdown()) {
+            closeQuietly(socket);
+            return null;
+        }
+        return socket;
+    }
+
+    // Closes the connections of an app that have not been taken
+    public void drop(String key) {
+        Connections connections;
+        synchronized (this) {
+            connections = appConnections.remove(key);
+        }
+        if (connections != null) {
+            connections.close();
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+        List<Connections> all;
+        synchronized (this) {
+            all = new ArrayList<Connections>(appConnections.values());
+            appConnections.clear();
+        }
+        for (Connections connections : all) {
+            connections.close();
+        }
+    }
+
+    private Socket open(InetSocketAddress address) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(address, connectTimeout);
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {}
+    }
+}
@@ -0,0 +1,117 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache of cloudlet VM IPs keyed by (userId, appId).
+ *
+ * Entries expire after a TTL and are persisted in shared preferences as "cloudlet|ip|timestamp",
+ * where cloudlet is the "host:port" of the provisioning server hosting the VM, so an app
+ * relaunching against a still-running VM can skip the create/poll cycle even after the launcher
+ * service has been restarted. Callers are expected to probe an entry before trusting it.
+ */
+public class VmIpCache {
+    private static final String SEPARATOR = "|";
+
+    private final SharedPreferences prefs;
+    private final long ttl;
+
+    // Guarded by this
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    public static class Entry {
+        public final String cloudlet;
+        public final String ip;
+        final long timestamp;
+
+        Entry(String cloudlet, String ip, long timestamp) {
+            this.cloudlet = cloudlet;
+            this.ip = ip;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public VmIpCache(SharedPreferences prefs, long ttl) {
+        this.prefs = prefs;
+        this.ttl = ttl;
+
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+            Entry entry = parse(e.getValue());
+            if (entry != null && now - entry.timestamp < ttl) {
+                entries.put(e.getKey(), entry);
+            } else {
+                editor.remove(e.getKey());
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * @return the cached VM of (userId, appId), or null if there is none or it has expired
+     */
+    public synchronized Entry get(String userId, String appId) {
+        String key = key(userId, appId);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.timestamp >= ttl) {
+            remove(userId, appId);
+            return null;
+        }
+        return entry;
+    }
+
+    // Adds an entry, or refreshes its timestamp
+    public synchronized void put(String userId, String appId, String cloudlet, String ip) {
+        String key = key(userId, appId);
+        Entry entry = new Entry(cloudlet, ip, System.currentTimeMillis());
+        entries.put(key, entry);
+        prefs.edit().putString(key, cloudlet + SEPARATOR + ip + SEPARATOR + entry.timestamp).apply();
+    }
+
+    public synchronized void remove(String userId, String appId) {
+        String key = key(userId, appId);
+        if (entries.remove(key) != null) {
+            prefs.edit().remove(key).apply();
+        }
+    }
+
+    private static String key(String userId, String appId) {
+        return userId + SEPARATOR + appId;
+    }
+
+    private static Entry parse(Object value) {
+        if (!(value instanceof String)) {
+            return null;
+        }
+        String[] fields = ((String) value).split("\\" + SEPARATOR);
+        if (fields.length != 3) {
+            return null;
+        }
+        try {
+            return new Entry(fields[0], fields[1], Long.parseLong(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
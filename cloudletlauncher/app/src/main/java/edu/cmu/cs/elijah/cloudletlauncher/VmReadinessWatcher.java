@@ -0,0 +1,102 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.util.Log;
+
+/**
+ * Waits for a cloudlet VM to become ready using long-poll GET requests.
+ *
+ * The status query is the same one used for polling ("?user_id=..&app_id=..") with an extra
+ * "wait" parameter in seconds. A server that supports it holds the request until the VM IP is
+ * known (or the wait expires, answering "None"), so the IP is delivered the moment it exists.
+ * A server that ignores "wait" answers "None" right away; this is detected and reported through
+ * {@link Listener#onLongPollUnsupported} so that the caller can fall back to periodic polling.
+ */
+public class VmReadinessWatcher implements Runnable {
+    private static final String LOG_TAG = "VmReadinessWatcher";
+
+    public interface Listener {
+        // Called with the VM IP, or with "Error" if the server failed to create the VM
+        void onVmReady(String userId, String appId, String response);
+
+        // Called when long polling cannot be used; elapsedMs is the time spent since start
+        void onLongPollUnsupported(String userId, String appId, long elapsedMs);
+    }
+
+    private final ProvisioningClient client;
+    private final String userId;
+    private final String appId;
+    private final int waitSeconds;
+    private final long timeoutMs;
+    private final Listener listener;
+
+    private volatile boolean isCancelled = false;
+    // Aborted on cancel, so that a request held by the server does not keep the thread
+    private final ProvisioningClient.Call call = new ProvisioningClient.Call();
+
+    /**
+     * @param waitSeconds how long the server may hold each request
+     * @param timeoutMs total time to keep long polling before giving up to the fallback
+     */
+    public VmReadinessWatcher(ProvisioningClient client, String userId, String appId, int waitSeconds,
+                              long timeoutMs, Listener listener) {
+        this.client = client;
+        this.userId = userId;
+        this.appId = appId;
+        this.waitSeconds = waitSeconds;
+        this.timeoutMs = timeoutMs;
+        this.listener = listener;
+    }
+
+    public void cancel() {
+        isCancelled = true;
+        call.abort();
+    }
+
+    @Override
+    public void run() {
+        long tStart = System.currentTimeMillis();
+        while (!isCancelled) {
+            long tRequest = System.currentTimeMillis();
+            String response = client.getStatus(userId, appId, waitSeconds, call);
+            long now = System.currentTimeMillis();
+            if (isCancelled) {
+                return;
+            }
+            if (response == null) {
+                Log.w(LOG_TAG, "Long poll failed, falling back to polling");
+                listener.onLongPollUnsupported(userId, appId, now - tStart);
+                return;
+            }
+            if (!response.equals(ProvisioningClient.RESPONSE_NOT_READY)) {
+                Log.i(LOG_TAG, "VM ready after " + (now - tStart) + " ms: " + response);
+                listener.onVmReady(userId, appId, response);
+                return;
+            }
+            // A server honouring "wait" only answers "None" after holding the request
+            if (now - tRequest < waitSeconds * 1000L / 2) {
+                Log.i(LOG_TAG, "Server does not hold status requests, falling back to polling");
+                listener.onLongPollUnsupported(userId, appId, now - tStart);
+                return;
+            }
+            if (now - tStart >= timeoutMs) {
+                Log.w(LOG_TAG, "VM not ready after " + (now - tStart) + " ms of long polling");
+                listener.onLongPollUnsupported(userId, appId, now - tStart);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CallbackDispatcherTest {
+    private static final long MIN_INTERVAL = 300;
+
+    private final List<List<String>> batches = new ArrayList<List<String>>();
+    private final List<Long> deliveryTimes = new ArrayList<Long>();
+    private final CallbackDispatcher<String> dispatcher = new CallbackDispatcher<String>(new CallbackDispatcher.Sink<String>() {
+        @Override
+        public void deliver(List<CallbackDispatcher.Event<String>> events) {
+            List<String> batch = new ArrayList<String>();
+            for (CallbackDispatcher.Event<String> event : events) {
+                batch.add(event.payload);
+            }
+            synchronized (batches) {
+                batches.add(batch);
+                deliveryTimes.add(System.currentTimeMillis());
+                batches.notifyAll();
+            }
+        }
+    }, MIN_INTERVAL);
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    private void awaitBatches(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        synchronized (batches) {
+            while (batches.size() < count && System.currentTimeMillis() < deadline) {
+                batches.wait(100);
+            }
+        }
+    }
+
+    @Test
+    public void supersededEvents_areCoalesced() throws Exception {
+        dispatcher.post("first", null);
+        awaitBatches(1);
+        // Now within the minimum interval of the first delivery
+        dispatcher.post("WAIT|", "state");
+        dispatcher.post("ERROR|x", null);
+        dispatcher.post("AUTH|", "state");
+        dispatcher.post("CONNECTED|", "state");
+        awaitBatches(2);
+
+        assertEquals(2, batches.size());
+        assertEquals("[ERROR|x, CONNECTED|]", batches.get(1).toString());
+        assertEquals(2, dispatcher.getCoalescedCount());
+        assertTrue(deliveryTimes.get(1) - deliveryTimes.get(0) >= MIN_INTERVAL - 20);
+    }
+
+    @Test
+    public void criticalEvents_skipRateLimit_andKeepOrder() throws Exception {
+        dispatcher.post("first", null);
+        awaitBatches(1);
+        long tPost = System.currentTimeMillis();
+        dispatcher.post("CONNECTED|", "state");
+        dispatcher.postCritical("10.0.0.5");
+        awaitBatches(2);
+
+        assertEquals("[CONNECTED|, 10.0.0.5]", batches.get(1).toString());
+        assertTrue(deliveryTimes.get(1) - tPost < MIN_INTERVAL / 2);
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import android.os.IBinder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ClientLeasesTest {
+    private final List<String> expired = new ArrayList<String>();
+    private final ClientLeases leases = new ClientLeases(new ClientLeases.Listener() {
+        @Override
+        public void onLeaseExpired(String clientId, String appId) {
+            expired.add(clientId + "/" + appId);
+        }
+    });
+
+    private static class FakeBinder implements IBinder {
+        DeathRecipient recipient = null;
+
+        public void linkToDeath(DeathRecipient r, int flags) {
+            recipient = r;
+        }
+
+        public boolean unlinkToDeath(DeathRecipient r, int flags) {
+            recipient = null;
+            return true;
+        }
+
+        public boolean pingBinder() {
+            return recipient != null;
+        }
+
+        public boolean isBinderAlive() {
+            return recipient != null;
+        }
+
+        // The remaining IBinder methods are not used by ClientLeases
+        public String getInterfaceDescriptor() {
+            return null;
+        }
+
+        public android.os.IInterface queryLocalInterface(String descriptor) {
+            return null;
+        }
+
+        public void dump(java.io.FileDescriptor fd, String[] args) {
+        }
+
+        public void dumpAsync(java.io.FileDescriptor fd, String[] args) {
+        }
+
+        public boolean transact(int code, android.os.Parcel data, android.os.Parcel reply, int flags) {
+            return false;
+        }
+
+        void die() {
+            recipient.binderDied();
+        }
+    }
+
+    @Test
+    public void deadClient_releasesRemainingLeases() {
+        FakeBinder binder = new FakeBinder();
+        leases.bind("pid:1", binder);
+        leases.acquire("pid:1", "lego");
+        leases.acquire("pid:1", "lego");
+        leases.acquire("pid:1", "pingpong");
+        leases.acquire("pid:2", "lego");
+        assertTrue(leases.release("pid:1", "pingpong"));
+
+        binder.die();
+
+        assertEquals(2, expired.size());
+        assertEquals("pid:1/lego", expired.get(0));
+        assertEquals(1, leases.getLeaseCount());
+        assertEquals(1, leases.getClientCount());
+    }
+
+    @Test
+    public void release_withoutLease_isRejected() {
+        assertFalse(leases.release("pid:1", "lego"));
+        leases.acquire("pid:1", "lego");
+        assertTrue(leases.release("pid:1", "lego"));
+        assertFalse(leases.release("pid:1", "lego"));
+        assertEquals(0, leases.getLeaseCount());
+        assertEquals(0, leases.getClientCount());
+    }
+
+    @Test
+    public void release_byOtherClient_keepsOwnersLease() {
+        FakeBinder binder = new FakeBinder();
+        leases.bind("pid:1", binder);
+        leases.acquire("pid:1", "lego");
+
+        // disconnectCloudlet releases the VM only when this succeeds
+        assertFalse(leases.release("pid:2", "lego"));
+
+        assertEquals(1, leases.getLeaseCount());
+        binder.die();
+        assertEquals(1, expired.size());
+        assertEquals("pid:1/lego", expired.get(0));
+    }
+
+    @Test
+    public void unbind_keepsLeasesWithoutDeathWatch() {
+        FakeBinder binder = new FakeBinder();
+        leases.bind("pid:1", binder);
+        leases.acquire("pid:1", "lego");
+        leases.unbind("pid:1", binder);
+
+        assertNull(binder.recipient);
+        assertEquals(1, leases.getLeaseCount());
+        assertTrue(expired.isEmpty());
+    }
+}
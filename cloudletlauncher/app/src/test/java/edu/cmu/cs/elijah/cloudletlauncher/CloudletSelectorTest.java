@@ -0,0 +1,109 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CloudletSelectorTest {
+    private final List<StubProvisioningServer> servers = new ArrayList<StubProvisioningServer>();
+    private final List<ProvisioningClient> candidates = new ArrayList<ProvisioningClient>();
+    private CloudletSelector selector = new CloudletSelector(8, 2000, 50, 10);
+
+    private ProvisioningClient addCloudlet(long delayMs, int load) throws Exception {
+        StubProvisioningServer server = new StubProvisioningServer(0, "10.0.0.1");
+        server.setResponseDelay(delayMs);
+        server.setLoad(load);
+        servers.add(server);
+        ProvisioningClient client = new ProvisioningClient("127.0.0.1", server.getPort());
+        candidates.add(client);
+        return client;
+    }
+
+    @After
+    public void tearDown() {
+        selector.shutdown();
+        for (ProvisioningClient client : candidates) {
+            client.close();
+        }
+        for (StubProvisioningServer server : servers) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void select_prefersCloseCloudlet_withoutWaitingForFarOnes() throws Exception {
+        addCloudlet(1000, 0);
+        ProvisioningClient near = addCloudlet(20, 0);
+        addCloudlet(1500, 0);
+
+        CloudletSelector.Selection selection = selector.select(candidates);
+
+        assertSame(near, selection.best.cloudlet);
+        assertTrue("selection took " + selection.elapsedMs + " ms", selection.elapsedMs < 500);
+    }
+
+    @Test
+    public void select_penalizesLoadedCloudlet() throws Exception {
+        addCloudlet(0, 50);
+        ProvisioningClient idle = addCloudlet(20, 0);
+
+        CloudletSelector.Selection selection = selector.select(candidates);
+
+        assertSame(idle, selection.best.cloudlet);
+        assertEquals(2, selection.results.size());
+    }
+
+    @Test
+    public void select_abortsProbesStillRunning() throws Exception {
+        selector.shutdown();
+        selector = new CloudletSelector(8, 200, 50, 10);
+        addCloudlet(3000, 0);
+
+        CloudletSelector.Selection selection = selector.select(candidates);
+        Thread.sleep(200);
+
+        assertNull(selection.best);
+        assertEquals(0, selector.getActiveProbeCount());
+    }
+
+    @Test
+    public void select_probesOnNewConnection() throws Exception {
+        ProvisioningClient cloudlet = addCloudlet(0, 0);
+        assertNotNull(cloudlet.getStatus("user", "app", 0));
+
+        selector.select(candidates);
+
+        // The idle connection of the status query is not reused for measuring the RTT
+        assertEquals(2, cloudlet.getConnectionCount());
+    }
+
+    @Test
+    public void select_skipsUnreachableCloudlet() throws Exception {
+        addCloudlet(0, 0);
+        servers.get(0).close();
+        ProvisioningClient alive = addCloudlet(0, -1);
+
+        CloudletSelector.Selection selection = selector.select(candidates);
+
+        assertSame(alive, selection.best.cloudlet);
+        assertEquals(CloudletSelector.LOAD_UNKNOWN, selection.best.load);
+    }
+}
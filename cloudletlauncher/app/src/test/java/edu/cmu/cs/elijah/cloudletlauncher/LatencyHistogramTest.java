@@ -0,0 +1,56 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void empty_reportsZero() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentile(50));
+    }
+
+    @Test
+    public void percentiles_areWithinOneBucket() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int ms = 1; ms <= 1000; ms++) {
+            h.record(ms);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(1000, h.getMax());
+        assertEquals(500, h.getMean());
+        assertBetween(500, 625, h.getPercentile(50));
+        assertBetween(900, 1000, h.getPercentile(90));
+        assertBetween(990, 1000, h.getPercentile(99));
+    }
+
+    @Test
+    public void largeValues_doNotOverflowBuckets() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(24L * 3600 * 1000);
+        h.record(-5);
+        assertEquals(2, h.getCount());
+        assertBetween(0, 1, h.getPercentile(50));
+        assertEquals(24L * 3600 * 1000, h.getPercentile(100));
+    }
+
+    private static void assertBetween(long lo, long hi, long actual) {
+        assertTrue(actual + " not in [" + lo + ", " + hi + "]", actual >= lo && actual <= hi);
+    }
+}
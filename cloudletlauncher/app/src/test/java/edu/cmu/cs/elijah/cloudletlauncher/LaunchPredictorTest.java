@@ -0,0 +1,66 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class LaunchPredictorTest {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Test
+    public void dailyApp_outranksOldBurst() {
+        LaunchPredictor predictor = new LaunchPredictor(null, 7 * DAY);
+        long now = 100 * DAY;
+        // Launched ten times a month ago, then forgotten
+        for (int i = 0; i < 10; i++) {
+            predictor.recordLaunch("home", "old", now - 30 * DAY);
+        }
+        // Launched once a day for the last week
+        for (int day = 7; day >= 1; day--) {
+            predictor.recordLaunch("home", "daily", now - day * DAY);
+        }
+
+        assertEquals(Arrays.asList("daily", "old"), predictor.getLikelyApps("home", 5, 0, now));
+        assertEquals(Collections.singletonList("daily"), predictor.getLikelyApps("home", 5, 2, now));
+        assertEquals(Collections.singletonList("daily"), predictor.getLikelyApps("home", 1, 0, now));
+    }
+
+    @Test
+    public void networks_haveSeparateHistories() {
+        LaunchPredictor predictor = new LaunchPredictor(null, 7 * DAY);
+        predictor.recordLaunch("home", "a", 0);
+        predictor.recordLaunch("work", "b", 0);
+
+        assertEquals(Collections.singletonList("a"), predictor.getLikelyApps("home", 5, 0, 0));
+        assertEquals(Collections.singletonList("b"), predictor.getLikelyApps("work", 5, 0, 0));
+        assertTrue(predictor.getLikelyApps("cafe", 5, 0, 0).isEmpty());
+    }
+
+    @Test
+    public void score_halvesEveryHalfLife() {
+        LaunchPredictor predictor = new LaunchPredictor(null, DAY);
+        predictor.recordLaunch("home", "a", 0);
+        predictor.recordLaunch("home", "a", 0);
+
+        assertEquals(2.0, predictor.getScore("home", "a", 0), 1e-9);
+        assertEquals(1.0, predictor.getScore("home", "a", DAY), 1e-9);
+        assertEquals(0.5, predictor.getScore("home", "a", 2 * DAY), 1e-9);
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ProvisioningClientTest {
+    private StubProvisioningServer server;
+    private ProvisioningClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubProvisioningServer(0, "10.0.0.5");
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void requests_reuseOneConnection() throws Exception {
+        assertEquals(ProvisioningClient.RESPONSE_OK, client.post("create", "app", "user"));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("10.0.0.5", client.getStatus("user", "app", 0));
+        }
+
+        assertEquals(11, server.getRequestCount());
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(1, client.getConnectionCount());
+    }
+
+    @Test
+    public void notReady_returnsSharedConstant() throws Exception {
+        assertSame(ProvisioningClient.RESPONSE_NOT_READY, client.getStatus("user", "unknown-app", 0));
+    }
+
+    @Test
+    public void batchStatus_parsesEveryApp() throws Exception {
+        server.createVm("user", "ready");
+        List<String> appIds = Arrays.asList(new String("ready"), new String("pending"));
+        Map<String, String> statuses = client.getStatuses("user", appIds, 0);
+
+        assertEquals(2, statuses.size());
+        assertEquals("10.0.0.5", statuses.get("ready"));
+        assertSame(ProvisioningClient.RESPONSE_NOT_READY, statuses.get("pending"));
+        // Keyed by the requested IDs themselves
+        for (String key : statuses.keySet()) {
+            assertTrue(key == appIds.get(0) || key == appIds.get(1));
+        }
+    }
+
+    @Test
+    public void batchStatus_unsupported_returnsEmptyMap() throws Exception {
+        server.setBatchSupported(false);
+        assertTrue(client.getStatuses("user", Arrays.asList("a", "b"), 0).isEmpty());
+    }
+
+    @Test
+    public void closedServer_returnsNull() throws Exception {
+        server.close();
+        client.close();
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+
+        assertNull(client.getStatus("user", "app", 0));
+    }
+}
@@ -0,0 +1,134 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ProvisioningExecutorTest {
+    private ProvisioningExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sameKey_runsInOrder() throws Exception {
+        executor = new ProvisioningExecutor(4, 64);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            final int n = i;
+            executor.execute("app", new Runnable() {
+                public void run() {
+                    order.add(n);
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    @Test
+    public void slowKey_doesNotBlockOtherKeys() throws Exception {
+        executor = new ProvisioningExecutor(2, 64);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherDone = new CountDownLatch(1);
+        executor.execute("slow", new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {}
+            }
+        });
+        executor.execute("slow", new Runnable() {
+            public void run() {}
+        });
+        executor.execute("other", new Runnable() {
+            public void run() {
+                otherDone.countDown();
+            }
+        });
+
+        assertTrue(otherDone.await(1, TimeUnit.SECONDS));
+        // The second "slow" operation is still queued behind the first one
+        assertEquals(1, executor.getQueueDepth());
+        Thread.sleep(100);
+        release.countDown();
+        Thread.sleep(100);
+        assertEquals(0, executor.getQueueDepth());
+        assertTrue(executor.getMaxWaitTime() >= 100);
+        assertEquals(0, executor.toBundle().getLong("queue_depth"));
+        assertEquals(executor.getMaxWaitTime(), executor.toBundle().getLong("max_wait"));
+    }
+
+    @Test
+    public void error_stillRunsNextOperationOfKey() throws Exception {
+        executor = new ProvisioningExecutor(2, 64);
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute("app", new Runnable() {
+            public void run() {
+                throw new AssertionError("failing operation");
+            }
+        });
+        executor.execute("app", new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void fullQueue_rejects() throws Exception {
+        executor = new ProvisioningExecutor(1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {}
+            }
+        };
+        try {
+            executor.execute("a", blocking);
+            Thread.sleep(50);
+            executor.execute("a", blocking);
+            executor.execute("b", blocking);
+            executor.execute("c", blocking);
+        } finally {
+            release.countDown();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ProvisioningSchedulerTest {
+    private static final int SESSIONS = 20;
+
+    private StubProvisioningServer server;
+    private ProvisioningScheduler scheduler;
+    private ProvisioningClient client;
+
+    private static class LatchListener implements ProvisioningScheduler.Listener {
+        final CountDownLatch ready;
+        final CountDownLatch expired;
+
+        LatchListener(int count) {
+            ready = new CountDownLatch(count);
+            expired = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onVmReady(String userId, String appId, String response) {
+            ready.countDown();
+        }
+
+        @Override
+        public void onSessionExpired(String userId, String appId) {
+            expired.countDown();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void manySessions_shareFixedThreadPool() throws Exception {
+        server = new StubProvisioningServer(300, "10.0.0.5");
+        server.setLongPollSupported(false);
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+        LatchListener listener = new LatchListener(SESSIONS);
+        scheduler = new ProvisioningScheduler(listener, 100, 50, 400, 10000);
+
+        for (int i = 0; i < SESSIONS; i++) {
+            server.createVm("user", "app" + i);
+            scheduler.start(client, "user", "app" + i);
+        }
+
+        assertTrue(listener.ready.await(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getSessionCount());
+        assertTrue(scheduler.getLargestThreadCount() < SESSIONS);
+        // With backoff, each session polls only a handful of times while the VM boots
+        assertTrue("polls: " + scheduler.getPollCount(), scheduler.getPollCount() <= SESSIONS * 4);
+    }
+
+    @Test
+    public void heldLongPolls_doNotDelayOtherSessions() throws Exception {
+        server = new StubProvisioningServer(200, "10.0.0.5");
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+        LatchListener listener = new LatchListener(2);
+        scheduler = new ProvisioningScheduler(listener, 100, 50, 400, 60000);
+
+        // VMs that never get created keep their long polls held by the server
+        for (int i = 0; i < 10; i++) {
+            scheduler.start(client, "user", "idle" + i);
+        }
+        server.createVm("user", "app");
+        scheduler.start(client, "user", "app");
+        // Beyond the long poll pool, sessions fall back to polling
+        for (int i = 10; i < SESSIONS; i++) {
+            scheduler.start(client, "user", "idle" + i);
+        }
+        server.createVm("user", "late");
+        scheduler.start(client, "user", "late");
+
+        assertTrue(listener.ready.await(3, TimeUnit.SECONDS));
+        assertTrue(scheduler.getActiveLongPollCount() > 4);
+
+        for (int i = 0; i < SESSIONS; i++) {
+            scheduler.cancel("user", "idle" + i);
+        }
+        Thread.sleep(300);
+        assertEquals(0, scheduler.getActiveLongPollCount());
+    }
+
+    @Test
+    public void cancel_abortsHeldLongPoll() throws Exception {
+        server = new StubProvisioningServer(60000, "10.0.0.5");
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+        LatchListener listener = new LatchListener(1);
+        scheduler = new ProvisioningScheduler(listener, 100, 50, 400, 60000);
+
+        server.createVm("user", "app");
+        scheduler.start(client, "user", "app");
+        Thread.sleep(200);
+        assertEquals(1, scheduler.getActiveLongPollCount());
+        assertTrue(scheduler.cancel("user", "app"));
+        Thread.sleep(200);
+
+        assertEquals(0, scheduler.getActiveLongPollCount());
+        assertEquals(1, listener.ready.getCount());
+    }
+
+    @Test
+    public void batch_stopsLongPollingBeforeDeadline() throws Exception {
+        server = new StubProvisioningServer(60000, "10.0.0.5");
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+        LatchListener listener = new LatchListener(1);
+        scheduler = new ProvisioningScheduler(listener, 100, 50, 400, 1500);
+
+        server.createVm("user", "app");
+        List<String> appIds = new ArrayList<String>();
+        appIds.add("app");
+        scheduler.startBatch(client, "user", appIds);
+
+        assertTrue(listener.expired.await(3, TimeUnit.SECONDS));
+        // One long poll of one second, then a few backed-off polls; no burst before the deadline
+        assertTrue("requests: " + server.getRequestCount(), server.getRequestCount() <= 5);
+    }
+
+    @Test
+    public void batch_pollsAllAppsInOneRequest() throws Exception {
+        server = new StubProvisioningServer(300, "10.0.0.5");
+        server.setLongPollSupported(false);
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+        List<String> appIds = new ArrayList<String>();
+        for (int i = 0; i < SESSIONS; i++) {
+            appIds.add("app" + i);
+        }
+
+        LatchListener listener = new LatchListener(SESSIONS);
+        scheduler = new ProvisioningScheduler(listener, 100, 50, 400, 10000);
+        for (String appId : appIds) {
+            server.createVm("user", appId);
+            scheduler.start(client, "user", appId);
+        }
+        assertTrue(listener.ready.await(5, TimeUnit.SECONDS));
+        int perAppRequests = server.getRequestCount();
+        scheduler.shutdown();
+
+        LatchListener batchListener = new LatchListener(SESSIONS);
+        scheduler = new ProvisioningScheduler(batchListener, 100, 50, 400, 10000);
+        for (String appId : appIds) {
+            server.createVm("user2", appId);
+        }
+        scheduler.startBatch(client, "user2", appIds);
+        assertTrue(batchListener.ready.await(5, TimeUnit.SECONDS));
+        int batchRequests = server.getRequestCount() - perAppRequests;
+
+        assertEquals(0, scheduler.getSessionCount());
+        assertTrue("batch used " + batchRequests + " requests, per-app " + perAppRequests,
+                batchRequests * SESSIONS / 2 <= perAppRequests);
+    }
+
+    @Test
+    public void batch_fallsBackToPerAppSessions() throws Exception {
+        server = new StubProvisioningServer(200, "10.0.0.5");
+        server.setBatchSupported(false);
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+        LatchListener listener = new LatchListener(2);
+        scheduler = new ProvisioningScheduler(listener, 100, 50, 400, 10000);
+
+        server.createVm("user", "a");
+        server.createVm("user", "b");
+        List<String> appIds = new ArrayList<String>();
+        appIds.add("a");
+        appIds.add("b");
+        scheduler.startBatch(client, "user", appIds);
+
+        assertTrue(listener.ready.await(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getSessionCount());
+    }
+
+    @Test
+    public void blockingRequests_runInParallelOffCallerThread() throws Exception {
+        scheduler = new ProvisioningScheduler(new LatchListener(0), 100, 50, 400, 10000);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            scheduler.runRequest(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {}
+                }
+            });
+        }
+
+        // More requests than the four fallback polling threads, all running at once
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void cancel_stopsPolling() throws Exception {
+        server = new StubProvisioningServer(60000, "10.0.0.5");
+        server.setLongPollSupported(false);
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+        LatchListener listener = new LatchListener(1);
+        scheduler = new ProvisioningScheduler(listener, 0, 20, 20, 10000);
+
+        server.createVm("user", "app");
+        scheduler.start(client, "user", "app");
+        Thread.sleep(200);
+        assertTrue(scheduler.cancel("user", "app"));
+        Thread.sleep(50);
+        int polls = scheduler.getPollCount();
+        Thread.sleep(200);
+
+        assertEquals(polls, scheduler.getPollCount());
+        assertEquals(1, listener.ready.getCount());
+    }
+
+    @Test
+    public void deadline_expiresSession() throws Exception {
+        server = new StubProvisioningServer(60000, "10.0.0.5");
+        server.setLongPollSupported(false);
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+        LatchListener listener = new LatchListener(1);
+        scheduler = new ProvisioningScheduler(listener, 0, 20, 50, 300);
+
+        server.createVm("user", "app");
+        scheduler.start(client, "user", "app");
+
+        assertTrue(listener.expired.await(2, TimeUnit.SECONDS));
+        assertEquals(1, listener.ready.getCount());
+        assertEquals(0, scheduler.getSessionCount());
+    }
+}
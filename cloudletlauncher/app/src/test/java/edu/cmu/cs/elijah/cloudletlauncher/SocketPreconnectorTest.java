@@ -0,0 +1,101 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+
+public class SocketPreconnectorTest {
+    private static final String IP = "127.0.0.1";
+
+    private SocketPreconnector preconnector;
+    private ServerSocket server1;
+    private ServerSocket server2;
+
+    @After
+    public void tearDown() throws IOException {
+        if (preconnector != null) {
+            preconnector.shutdown();
+        }
+        if (server1 != null) {
+            server1.close();
+        }
+        if (server2 != null) {
+            server2.close();
+        }
+    }
+
+    @Test
+    public void connect_opensAllPorts() throws Exception {
+        server1 = new ServerSocket(0, 50, InetAddress.getByName(IP));
+        server2 = new ServerSocket(0, 50, InetAddress.getByName(IP));
+        preconnector = new SocketPreconnector(4, 1000, 10000);
+        preconnector.setPorts("user|app", new int[]{server1.getLocalPort(), server2.getLocalPort()});
+
+        assertEquals(2, preconnector.connect("user|app", IP));
+
+        Socket socket = preconnector.take("user|app", IP, server1.getLocalPort());
+        assertNotNull(socket);
+        assertTrue(socket.isConnected());
+        // Each connection is handed out once
+        assertNull(preconnector.take("user|app", IP, server1.getLocalPort()));
+        socket.close();
+    }
+
+    @Test
+    public void take_checksVmAndPort() throws Exception {
+        server1 = new ServerSocket(0, 50, InetAddress.getByName(IP));
+        preconnector = new SocketPreconnector(4, 1000, 10000);
+        int port = server1.getLocalPort();
+        preconnector.setPorts("user|app", new int[]{port});
+        preconnector.connect("user|app", IP);
+
+        assertNull(preconnector.take("user|app", "10.0.0.1", port));
+        assertNull(preconnector.take("user|app", IP, port + 1));
+        assertNull(preconnector.take("user|other", IP, port));
+        assertNotNull(preconnector.take("user|app", IP, port));
+    }
+
+    @Test
+    public void closedPort_isSkipped() throws Exception {
+        server1 = new ServerSocket(0, 50, InetAddress.getByName(IP));
+        ServerSocket closed = new ServerSocket(0, 50, InetAddress.getByName(IP));
+        int closedPort = closed.getLocalPort();
+        closed.close();
+        preconnector = new SocketPreconnector(4, 1000, 10000);
+        preconnector.setPorts("user|app", new int[]{server1.getLocalPort(), closedPort});
+
+        assertEquals(1, preconnector.connect("user|app", IP));
+        assertNull(preconnector.take("user|app", IP, closedPort));
+    }
+
+    @Test
+    public void oldConnections_areNotHandedOut() throws Exception {
+        server1 = new ServerSocket(0, 50, InetAddress.getByName(IP));
+        preconnector = new SocketPreconnector(4, 1000, 50);
+        preconnector.setPorts("user|app", new int[]{server1.getLocalPort()});
+        preconnector.connect("user|app", IP);
+        Thread.sleep(100);
+
+        assertNull(preconnector.take("user|app", IP, server1.getLocalPort()));
+    }
+}
@@ -0,0 +1,312 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the cloudlet provisioning server, used by unit tests.
+ *
+ * It speaks just enough HTTP/1.1 (including keep-alive) to serve the launcher:
+ * POST "user_id=..&app_id=..&action=create|delete" and GET "?user_id=..&app_id=..[&wait=s]".
+ * With "app_ids=a,b" instead of "app_id", both act on several apps and GET answers one
+ * "appId=status" line per app.
+ * A created VM becomes ready after a configurable boot delay.
+ */
+public class StubProvisioningServer {
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private volatile boolean isRunning = true;
+
+    private final long bootDelayMs;
+    private final String vmIp;
+    private volatile boolean isLongPollSupported = true;
+    private volatile boolean isBatchSupported = true;
+    private volatile int load = -1;
+    private volatile long responseDelayMs = 0;
+
+    // Keyed by "userId|appId", value is the creation time
+    private final Map<String, Long> vms = new HashMap<String, Long>();
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    public StubProvisioningServer(long bootDelayMs, String vmIp) throws IOException {
+        this.bootDelayMs = bootDelayMs;
+        this.vmIp = vmIp;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "StubProvisioningServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void setLongPollSupported(boolean flag) {
+        isLongPollSupported = flag;
+    }
+
+    public void setBatchSupported(boolean flag) {
+        isBatchSupported = flag;
+    }
+
+    // Load reported on "GET /load"; negative means load queries are not supported
+    public void setLoad(int load) {
+        this.load = load;
+    }
+
+    // Extra delay before every response, to emulate a distant server
+    public void setResponseDelay(long delayMs) {
+        this.responseDelayMs = delayMs;
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public void createVm(String userId, String appId) {
+        synchronized (vms) {
+            vms.put(userId + "|" + appId, System.currentTimeMillis());
+        }
+    }
+
+    public void close() {
+        isRunning = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {}
+    }
+
+    private void acceptLoop() {
+        while (isRunning) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connectionCount.incrementAndGet();
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serveConnection(socket);
+                    }
+                });
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (isRunning) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    break;
+                }
+                int contentLength = 0;
+                boolean isClosing = false;
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    String lower = line.toLowerCase();
+                    if (lower.startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(line.substring(15).trim());
+                    } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                        isClosing = true;
+                    }
+                }
+                byte[] body = new byte[contentLength];
+                int read = 0;
+                while (read < contentLength) {
+                    int n = in.read(body, read, contentLength - read);
+                    if (n < 0) break;
+                    read += n;
+                }
+                requestCount.incrementAndGet();
+
+                if (responseDelayMs > 0) {
+                    try {
+                        Thread.sleep(responseDelayMs);
+                    } catch (InterruptedException e) {}
+                }
+
+                String[] parts = requestLine.split(" ");
+                String response;
+                if (parts[1].startsWith("/load")) {
+                    response = load < 0 ? "None" : String.valueOf(load);
+                } else if (parts[0].equals("POST")) {
+                    response = handlePost(parseQuery(new String(body, "UTF-8")));
+                } else {
+                    int q = parts[1].indexOf('?');
+                    response = handleGet(parseQuery(q < 0 ? "" : parts[1].substring(q + 1)));
+                }
+
+                byte[] responseBytes = response.getBytes("UTF-8");
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: "
+                        + responseBytes.length + "\r\n" + (isClosing ? "Connection: close\r\n" : "")
+                        + "\r\n").getBytes("UTF-8"));
+                out.write(responseBytes);
+                out.flush();
+                if (isClosing) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    private String handlePost(Map<String, String> params) {
+        String[] appIds = getAppIds(params);
+        if (appIds == null) {
+            return "Error";
+        }
+        for (String appId : appIds) {
+            String key = params.get("user_id") + "|" + appId;
+            if ("create".equals(params.get("action"))) {
+                synchronized (vms) {
+                    if (!vms.containsKey(key)) {
+                        vms.put(key, System.currentTimeMillis());
+                    }
+                }
+            } else if ("delete".equals(params.get("action"))) {
+                synchronized (vms) {
+                    vms.remove(key);
+                    vms.notifyAll();
+                }
+            }
+        }
+        return "OK";
+    }
+
+    private String handleGet(Map<String, String> params) {
+        String[] appIds = getAppIds(params);
+        if (appIds == null) {
+            return "Error";
+        }
+        long waitMs = 0;
+        if (isLongPollSupported && params.containsKey("wait")) {
+            waitMs = Long.parseLong(params.get("wait")) * 1000;
+        }
+        long deadline = System.currentTimeMillis() + waitMs;
+        String[] statuses = new String[appIds.length];
+        synchronized (vms) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                long sleep = deadline - now;
+                boolean isAnyReady = false;
+                for (int i = 0; i < appIds.length; i++) {
+                    Long created = vms.get(params.get("user_id") + "|" + appIds[i]);
+                    if (created != null && now >= created + bootDelayMs) {
+                        statuses[i] = vmIp;
+                        isAnyReady = true;
+                    } else {
+                        statuses[i] = "None";
+                        if (created != null) {
+                            sleep = Math.min(sleep, created + bootDelayMs - now);
+                        }
+                    }
+                }
+                if (isAnyReady || sleep <= 0) {
+                    break;
+                }
+                try {
+                    vms.wait(sleep);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        if (!params.containsKey("app_ids")) {
+            return statuses[0];
+        }
+        StringBuilder response = new StringBuilder();
+        for (int i = 0; i < appIds.length; i++) {
+            response.append(appIds[i]).append('=').append(statuses[i]).append('\n');
+        }
+        return response.toString();
+    }
+
+    // Apps named by a request, or null if it names none (or a batch the server does not support)
+    private String[] getAppIds(Map<String, String> params) {
+        if (params.containsKey("app_ids")) {
+            return isBatchSupported ? params.get("app_ids").split(",") : null;
+        }
+        if (params.containsKey("app_id")) {
+            return new String[]{params.get("app_id")};
+        }
+        return null;
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("UTF-8");
+    }
+}
@@ -0,0 +1,88 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures time-to-IP of {@link VmReadinessWatcher} against the local stub provisioning server.
+ */
+public class VmReadinessWatcherTest {
+    private static final long BOOT_DELAY = 500;
+
+    private StubProvisioningServer server;
+    private ProvisioningClient client;
+
+    private static class RecordingListener implements VmReadinessWatcher.Listener {
+        String response = null;
+        boolean isUnsupported = false;
+        long elapsedMs = -1;
+
+        public void onVmReady(String userId, String appId, String response) {
+            this.response = response;
+        }
+
+        public void onLongPollUnsupported(String userId, String appId, long elapsedMs) {
+            this.isUnsupported = true;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void longPoll_deliversIpAsSoonAsVmIsReady() throws Exception {
+        server = new StubProvisioningServer(BOOT_DELAY, "10.0.0.5");
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+        RecordingListener listener = new RecordingListener();
+        VmReadinessWatcher watcher = new VmReadinessWatcher(client, "user", "app", 5, 30000, listener);
+
+        long tStart = System.currentTimeMillis();
+        server.createVm("user", "app");
+        watcher.run();
+        long timeToIp = System.currentTimeMillis() - tStart;
+
+        assertEquals("10.0.0.5", listener.response);
+        assertFalse(listener.isUnsupported);
+        assertTrue("time to IP was " + timeToIp + " ms", timeToIp >= BOOT_DELAY && timeToIp < BOOT_DELAY + 1000);
+    }
+
+    @Test
+    public void longPoll_fallsBackWhenServerIgnoresWait() throws Exception {
+        server = new StubProvisioningServer(BOOT_DELAY, "10.0.0.5");
+        client = new ProvisioningClient("127.0.0.1", server.getPort());
+        server.setLongPollSupported(false);
+        RecordingListener listener = new RecordingListener();
+        VmReadinessWatcher watcher = new VmReadinessWatcher(client, "user", "app", 5, 30000, listener);
+
+        server.createVm("user", "app");
+        watcher.run();
+
+        assertNull(listener.response);
+        assertTrue(listener.isUnsupported);
+        assertTrue(listener.elapsedMs < BOOT_DELAY);
+    }
+}
@@ -0,0 +1,142 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.elijah.cloudletlauncher.api;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Typed status event delivered to subscribed apps through {@link ICloudletServiceCallback#onEvent}.
+ *
+ * Fields that do not apply to an event type are null (or -1 for times).
+ */
+public class CloudletEvent implements Parcelable {
+    public enum Type {
+        // The launcher is connected to the OpenVPN service
+        SERVICE_READY,
+        // A cloudlet has been chosen to host the VM of appId
+        CLOUDLET_SELECTED,
+        // The VM of appId has an IP, the tunnel may not be up yet
+        VM_READY,
+        // The OpenVPN state changed
+        VPN_STATE,
+        // The VM of appId is reachable at vmIp
+        SERVER_IP,
+        ERROR,
+        // The VM of appId has been moved to a closer cloudlet and is reachable at vmIp; the old VM
+        // (message tells where it was) is deleted shortly afterwards
+        CLOUDLET_SWITCHED,
+        // Never sent; received in place of types added to the launcher after this copy of the class.
+        // New types go after it, so that the masks of the ones above stay the same.
+        UNKNOWN;
+
+        public int mask() {
+            return 1 << ordinal();
+        }
+    }
+
+    // All types known to this copy of the class, so subscribers do not get types added later
+    public static final int ALL_TYPES = knownTypesMask();
+
+    public Type type;
+    public String appId = null;
+    public String vmIp = null;
+    // "host:port" of the provisioning server
+    public String cloudlet = null;
+    // OpenVPN state (for VPN_STATE) and human-readable details
+    public String state = null;
+    public String message = null;
+    // When the event happened
+    public long timestamp;
+    // Time since findCloudlet of appId
+    public long elapsedMs = -1;
+    // Latency of each provisioning phase of appId so far, in ms, keyed by phase name
+    public Bundle latencies = null;
+
+    public CloudletEvent(Type type) {
+        this.type = type;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public static int maskOf(Type... types) {
+        int mask = 0;
+        for (Type t : types) {
+            mask |= t.mask();
+        }
+        return mask;
+    }
+
+    private static int knownTypesMask() {
+        int mask = 0;
+        for (Type t : Type.values()) {
+            if (t != Type.UNKNOWN) {
+                mask |= t.mask();
+            }
+        }
+        return mask;
+    }
+
+    private CloudletEvent(Parcel in) {
+        String typeName = in.readString();
+        try {
+            type = Type.valueOf(typeName);
+        } catch (IllegalArgumentException e) {
+            type = Type.UNKNOWN;
+        }
+        appId = in.readString();
+        vmIp = in.readString();
+        cloudlet = in.readString();
+        state = in.readString();
+        message = in.readString();
+        timestamp = in.readLong();
+        elapsedMs = in.readLong();
+        latencies = in.readBundle(CloudletEvent.class.getClassLoader());
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(type.name());
+        out.writeString(appId);
+        out.writeString(vmIp);
+        out.writeString(cloudlet);
+        out.writeString(state);
+        out.writeString(message);
+        out.writeLong(timestamp);
+        out.writeLong(elapsedMs);
+        out.writeBundle(latencies);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public static final Parcelable.Creator<CloudletEvent> CREATOR = new Parcelable.Creator<CloudletEvent>() {
+        public CloudletEvent createFromParcel(Parcel in) {
+            return new CloudletEvent(in);
+        }
+
+        public CloudletEvent[] newArray(int size) {
+            return new CloudletEvent[size];
+        }
+    };
+
+    @Override
+    public String toString() {
+        return type + (appId != null ? " " + appId : "") + (vmIp != null ? " " + vmIp : "")
+                + (state != null ? " " + state : "") + (message != null ? " " + message : "");
+    }
+}
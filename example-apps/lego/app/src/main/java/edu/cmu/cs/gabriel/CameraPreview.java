@@ -30,11 +30,22 @@ import android.view.SurfaceView;
 public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
     private static final String LOG_TAG = "CameraPreview";
 
+    // preview buffers the camera cycles through; the video pipeline holds at most two at a time
+    private static final int PREVIEW_BUFFER_COUNT = 4;
+
     public SurfaceHolder mHolder;
     public Camera mCamera = null;
     public List<int[]> supportingFPS = null;
     public List<Camera.Size> supportingSize = null;
 
+    // preview format and size, cached so that frame callbacks do not query camera parameters
+    private int previewFormat = ImageFormat.NV21;
+    private int previewWidth = 0;
+    private int previewHeight = 0;
+
+    private PreviewBufferPool bufferPool = new PreviewBufferPool(PREVIEW_BUFFER_COUNT);
+    private PreviewCallback previewCallback = null;
+
     public CameraPreview(Context context, AttributeSet attrs) {
         super(context, attrs);
 
@@ -68,7 +79,10 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
             mCamera.stopPreview();
             mCamera.release();
             mCamera = null;
+            Log.i(LOG_TAG, "Preview buffers allocated per frame: " + bufferPool.getAllocationsPerFrame());
         }
+        // a reopened camera needs new buffers
+        bufferPool.clear();
     }
 
     @Override
@@ -90,6 +104,26 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         }
 
         mCamera.setParameters(parameters);
+        updatePreviewFormat();
+        if (previewCallback != null) {
+            addPreviewBuffers();
+        }
+    }
+
+    private void updatePreviewFormat() {
+        Camera.Parameters parameters = mCamera.getParameters();
+        Camera.Size size = parameters.getPreviewSize();
+        previewFormat = parameters.getPreviewFormat();
+        previewWidth = size.width;
+        previewHeight = size.height;
+    }
+
+    // Gives the camera a full set of buffers, unless it already has buffers of the current size
+    private void addPreviewBuffers() {
+        int bufferSize = previewWidth * previewHeight * ImageFormat.getBitsPerPixel(previewFormat) / 8;
+        for (byte[] buffer : bufferPool.allocate(bufferSize)) {
+            mCamera.addCallbackBuffer(buffer);
+        }
     }
 
     public void surfaceCreated(SurfaceHolder holder) {
@@ -163,12 +197,66 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
          */
     }
 
+    /**
+     * Frames are delivered in pooled buffers: the callback (or the thread it hands a frame to)
+     * must call releaseBuffer once it is done with a frame.
+     */
     public void setPreviewCallback(PreviewCallback previewCallback) {
+        this.previewCallback = previewCallback;
         if (this.mCamera != null){
-            mCamera.setPreviewCallback(previewCallback);
+            if (previewCallback == null) {
+                mCamera.setPreviewCallbackWithBuffer(null);
+                return;
+            }
+            if (previewWidth == 0) {
+                updatePreviewFormat();
+            }
+            addPreviewBuffers();
+            mCamera.setPreviewCallbackWithBuffer(bufferedPreviewCallback);
         }
     }
 
+    private PreviewCallback bufferedPreviewCallback = new PreviewCallback() {
+        public void onPreviewFrame(byte[] frame, Camera camera) {
+            // give back the buffers released since the last frame
+            byte[] buffer;
+            while ((buffer = bufferPool.pollReleased()) != null) {
+                camera.addCallbackBuffer(buffer);
+            }
+            bufferPool.countFrame();
+
+            PreviewCallback callback = previewCallback;
+            if (callback != null) {
+                callback.onPreviewFrame(frame, camera);
+            } else {
+                bufferPool.release(frame);
+            }
+        }
+    };
+
+    /**
+     * Hands a frame buffer back to the camera; can be called from any thread
+     */
+    public void releaseBuffer(byte[] buffer) {
+        bufferPool.release(buffer);
+    }
+
+    public int getPreviewFormat() {
+        return previewFormat;
+    }
+
+    public int getPreviewWidth() {
+        return previewWidth;
+    }
+
+    public int getPreviewHeight() {
+        return previewHeight;
+    }
+
+    public PreviewBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
     public Camera getCamera() {
         return mCamera;
     }
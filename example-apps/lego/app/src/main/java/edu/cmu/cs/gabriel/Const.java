@@ -47,6 +47,10 @@ public class Const {
     public static final File TEST_IMAGE_DIR = new File (ROOT_DIR.getAbsolutePath() +
             File.separator + "images-" + APP_NAME + File.separator);
 
+    // whether to run the video, acc, result and control connections on one NIO selector thread
+    // instead of one blocking thread each
+    public static final boolean USE_NIO_TRANSPORT = false;
+
     // may include background pinging to keep network active
     public static final boolean BACKGROUND_PING = false;
     public static final int PING_INTERVAL = 200;
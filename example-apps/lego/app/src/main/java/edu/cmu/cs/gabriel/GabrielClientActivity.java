@@ -15,6 +15,7 @@
 package edu.cmu.cs.gabriel;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Timer;
@@ -36,6 +37,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.UtteranceProgressListener;
@@ -43,10 +45,13 @@ import android.util.Log;
 import android.view.WindowManager;
 import android.widget.ImageView;
 
+import edu.cmu.cs.elijah.cloudletlauncher.api.CloudletEvent;
 import edu.cmu.cs.elijah.cloudletlauncher.api.ICloudletService;
 import edu.cmu.cs.elijah.cloudletlauncher.api.ICloudletServiceCallback;
 import edu.cmu.cs.gabriel.network.AccStreamingThread;
 import edu.cmu.cs.gabriel.network.ControlThread;
+import edu.cmu.cs.gabriel.network.FrameEncoderThread;
+import edu.cmu.cs.gabriel.network.NioTransport;
 import edu.cmu.cs.gabriel.network.NetworkProtocol;
 import edu.cmu.cs.gabriel.network.PingThread;
 import edu.cmu.cs.gabriel.network.ResultReceivingThread;
@@ -65,6 +70,8 @@ public class GabrielClientActivity extends Activity implements TextToSpeech.OnIn
     private AccStreamingThread accStreamingThread = null;
     private ResultReceivingThread resultThread = null;
     private ControlThread controlThread = null;
+    // only with Const.USE_NIO_TRANSPORT, then it carries the connections of the threads above
+    private NioTransport nioTransport = null;
     private TokenController tokenController = null;
     private PingThread pingThread = null;
 
@@ -214,6 +221,7 @@ public class GabrielClientActivity extends Activity implements TextToSpeech.OnIn
             controlThread.close();
             controlThread = null;
         }
+        closeNioTransport();
 
         if (serverIP == null) return;
 
@@ -224,7 +232,13 @@ public class GabrielClientActivity extends Activity implements TextToSpeech.OnIn
 
         tokenController = new TokenController(tokenSize, latencyFile);
 
+        if (Const.USE_NIO_TRANSPORT) {
+            initNioTransport(serverIP);
+            return;
+        }
+
         controlThread = new ControlThread(serverIP, Const.CONTROL_PORT, returnMsgHandler, tokenController);
+        controlThread.setPreconnectedSocket(takePreconnectedSocket(Const.CONTROL_PORT));
         controlThread.start();
 
         if (Const.IS_EXPERIMENT) {
@@ -236,15 +250,85 @@ public class GabrielClientActivity extends Activity implements TextToSpeech.OnIn
         }
 
         resultThread = new ResultReceivingThread(serverIP, Const.RESULT_RECEIVING_PORT, returnMsgHandler);
+        resultThread.setPreconnectedSocket(takePreconnectedSocket(Const.RESULT_RECEIVING_PORT));
         resultThread.start();
 
         videoStreamingThread = new VideoStreamingThread(serverIP, Const.VIDEO_STREAM_PORT, returnMsgHandler, tokenController);
+        videoStreamingThread.setBufferRecycler(frameBufferRecycler);
+        videoStreamingThread.setPreconnectedSocket(takePreconnectedSocket(Const.VIDEO_STREAM_PORT));
         videoStreamingThread.start();
 
         accStreamingThread = new AccStreamingThread(serverIP, Const.ACC_STREAM_PORT, returnMsgHandler, tokenController);
+        accStreamingThread.setPreconnectedSocket(takePreconnectedSocket(Const.ACC_STREAM_PORT));
         accStreamingThread.start();
     }
 
+    /**
+     * Like the end of initPerRun, but with all connections driven by one NIO transport thread.
+     * Only the video thread still runs, to take encoded frames and queue them.
+     * Connections preopened by the cloudlet launcher are not used in this mode.
+     */
+    private void initNioTransport(String serverIP) {
+        try {
+            nioTransport = new NioTransport(serverIP, returnMsgHandler);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error in opening NIO selector: " + e);
+            return;
+        }
+
+        controlThread = new ControlThread(serverIP, Const.CONTROL_PORT, returnMsgHandler, tokenController);
+        controlThread.attachTo(nioTransport);
+
+        resultThread = new ResultReceivingThread(serverIP, Const.RESULT_RECEIVING_PORT, returnMsgHandler);
+        resultThread.attachTo(nioTransport);
+
+        videoStreamingThread = new VideoStreamingThread(serverIP, Const.VIDEO_STREAM_PORT, returnMsgHandler, tokenController);
+        videoStreamingThread.setBufferRecycler(frameBufferRecycler);
+        videoStreamingThread.attachTo(nioTransport);
+
+        accStreamingThread = new AccStreamingThread(serverIP, Const.ACC_STREAM_PORT, returnMsgHandler, tokenController);
+        accStreamingThread.attachTo(nioTransport);
+
+        nioTransport.start();
+        videoStreamingThread.start();
+
+        if (Const.IS_EXPERIMENT) {
+            controlThread.sendControlMsg("ping");
+            // wait a while for ping to finish...
+            try {
+                Thread.sleep(5*1000);
+            } catch (InterruptedException e) {}
+        }
+    }
+
+    private void closeNioTransport() {
+        if (nioTransport != null) {
+            nioTransport.close();
+            nioTransport = null;
+            // attached result threads are never started, but may run an animation timer
+            if (resultThread != null) {
+                resultThread.close();
+                resultThread = null;
+            }
+        }
+    }
+
+    /**
+     * @return the connection to port of the current server the cloudlet launcher opened before
+     * announcing it, or null if there is none and the thread should connect by itself
+     */
+    private ParcelFileDescriptor takePreconnectedSocket(int port) {
+        if (Const.IS_EXPERIMENT || mCloudletService == null) {
+            return null;
+        }
+        try {
+            return mCloudletService.takeConnectedSocket(appId, port);
+        } catch (RemoteException e) {
+            Log.w(LOG_TAG, "Error in getting preconnected socket: " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Runs a set of experiments with different server IPs and token numbers.
      * IP list and token sizes are defined in the Const file.
@@ -296,13 +380,24 @@ public class GabrielClientActivity extends Activity implements TextToSpeech.OnIn
     }
 
     private PreviewCallback previewCallback = new PreviewCallback() {
-        // called whenever a new frame is captured
+        // called whenever a new frame is captured, in a buffer of the preview's pool
         public void onPreviewFrame(byte[] frame, Camera mCamera) {
-            if (isRunning) {
-                Camera.Parameters parameters = mCamera.getParameters();
-                if (videoStreamingThread != null){
-                    videoStreamingThread.push(frame, parameters);
-                }
+            VideoStreamingThread streamingThread = videoStreamingThread;
+            if (isRunning && streamingThread != null) {
+                streamingThread.push(frame, preview.getPreviewFormat(), preview.getPreviewWidth(),
+                        preview.getPreviewHeight());
+            } else {
+                frameBufferRecycler.recycle(frame);
+            }
+        }
+    };
+
+    private FrameEncoderThread.BufferRecycler frameBufferRecycler = new FrameEncoderThread.BufferRecycler() {
+        // called by the video pipeline once it is done with a frame
+        public void recycle(byte[] buffer) {
+            CameraPreview cameraPreview = preview;
+            if (cameraPreview != null) {
+                cameraPreview.releaseBuffer(buffer);
             }
         }
     };
@@ -402,6 +497,7 @@ public class GabrielClientActivity extends Activity implements TextToSpeech.OnIn
             controlThread.close();
             controlThread = null;
         }
+        closeNioTransport();
         if (tokenController != null){
             tokenController.close();
             tokenController = null;
@@ -495,6 +591,15 @@ public class GabrielClientActivity extends Activity implements TextToSpeech.OnIn
         public void amReady() throws RemoteException {
             return;
         }
+
+        public void onEvent(CloudletEvent event) throws RemoteException {
+            if (event.type == CloudletEvent.Type.SERVER_IP
+                    || event.type == CloudletEvent.Type.CLOUDLET_SWITCHED) {
+                newServerIP(event.vmIp);
+            } else {
+                message(event.type + "|" + event.message);
+            }
+        }
     };
 
     private ServiceConnection mConnection = new ServiceConnection() {
@@ -503,7 +608,13 @@ public class GabrielClientActivity extends Activity implements TextToSpeech.OnIn
             Log.i(LOG_TAG, "Connection to cloudlet service established");
             mCloudletService = ICloudletService.Stub.asInterface(service);
             try {
-                mCloudletService.registerCallback(mCallback);
+                // Only the server IP of this app (initial or after a handoff) and errors are of interest
+                mCloudletService.subscribeCallback(mCallback, new String[]{appId},
+                        CloudletEvent.maskOf(CloudletEvent.Type.SERVER_IP, CloudletEvent.Type.CLOUDLET_SWITCHED,
+                                CloudletEvent.Type.ERROR));
+                // Let the launcher connect to the server ports while it announces the server
+                mCloudletService.setPreconnectPorts(appId, new int[]{Const.VIDEO_STREAM_PORT,
+                        Const.ACC_STREAM_PORT, Const.RESULT_RECEIVING_PORT, Const.CONTROL_PORT});
                 mCloudletService.findCloudlet(appId);
             } catch (RemoteException e) {
                 Log.e(LOG_TAG, "Error in registering callback to cloudlet service");
@@ -0,0 +1,103 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package edu.cmu.cs.gabriel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preview frame buffers for Camera.addCallbackBuffer.
+ * Once the video pipeline is done with a frame (encoded or dropped), its buffer is released here
+ * from whichever thread holds it, and goes back to the camera on the next preview callback, so
+ * capturing allocates no new frame buffers in steady state.
+ */
+public class PreviewBufferPool {
+    private final int bufferCount;
+
+    // size of the buffers the camera currently has, 0 if it has none
+    private volatile int bufferSize = 0;
+    private final ConcurrentLinkedQueue<byte[]> releasedBuffers = new ConcurrentLinkedQueue<byte[]>();
+
+    private final AtomicLong allocationCount = new AtomicLong();
+    private final AtomicLong frameCount = new AtomicLong();
+
+    public PreviewBufferPool(int bufferCount) {
+        this.bufferCount = bufferCount;
+    }
+
+    /**
+     * @return the new buffers to add to the camera, or none if it already has buffers of this size
+     */
+    public synchronized List<byte[]> allocate(int size) {
+        List<byte[]> buffers = new ArrayList<byte[]>();
+        if (size == bufferSize) {
+            return buffers;
+        }
+        releasedBuffers.clear();
+        bufferSize = size;
+        for (int i = 0; i < bufferCount; i++) {
+            buffers.add(new byte[size]);
+        }
+        allocationCount.addAndGet(bufferCount);
+        return buffers;
+    }
+
+    /**
+     * Called from any thread once a frame is no longer used.
+     * Buffers of an older preview size are left to the garbage collector.
+     */
+    public void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            releasedBuffers.add(buffer);
+        }
+    }
+
+    /**
+     * @return a released buffer to give back to the camera, or null if there is none
+     */
+    public byte[] pollReleased() {
+        return releasedBuffers.poll();
+    }
+
+    /**
+     * Forgets all buffers, e.g. after the camera has been released
+     */
+    public synchronized void clear() {
+        bufferSize = 0;
+        releasedBuffers.clear();
+    }
+
+    public void countFrame() {
+        frameCount.incrementAndGet();
+    }
+
+    /**
+     * Test hook: frame buffers allocated per captured frame, which drops towards 0 in steady state
+     * (it was 1 with the plain preview callback)
+     */
+    public double getAllocationsPerFrame() {
+        long frames = frameCount.get();
+        return frames == 0 ? 0 : (double) allocationCount.get() / frames;
+    }
+
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+
+    public long getFrameCount() {
+        return frameCount.get();
+    }
+}
@@ -26,7 +26,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
-public class AccControlThread extends Thread {
+public class AccControlThread extends Thread implements NioTransport.MessageHandler {
 
     private static final String LOG_TAG = "krha";
 
@@ -59,6 +59,19 @@ public class AccControlThread extends Thread {
         }
     }
 
+    /**
+     * Handles one message when attached to a NIO transport instead of running as a thread
+     */
+    @Override
+    public void onMessage(String message) {
+        try {
+            this.notifyReceivedData(message);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.toString());
+            this.notifyError(e.getMessage());
+        }
+    }
+
     private String receiveMsg(DataInputStream reader) throws IOException {
         int retLength = reader.readInt();
         byte[] recvByte = new byte[retLength];
@@ -19,9 +19,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Vector;
 
 import edu.cmu.cs.gabriel.token.TokenController;
@@ -30,25 +29,47 @@ import android.hardware.Camera.Size;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 public class AccStreamingThread extends Thread {
     private static final String LOG_TAG = "krha";
 
     static final int BUFFER_SIZE = 102400; // only for the UDP case
+    // sent time and x, y, z of one sample
+    private static final int ACC_DATA_SIZE = 4 + 3 * 4;
+    // samples waiting for the NIO transport; newer ones are dropped if the connection stalls
+    private static final int MAX_BATCHED_SAMPLES = 256;
     private boolean is_running = false;
     private InetAddress remoteIP;
     private int remotePort;
 
-    private Socket tcpSocket = null;
+    private ParcelFileDescriptor preconnectedSocket = null;
+    private ServerConnection connection = null;
     private DataOutputStream networkWriter = null;
     private AccControlThread networkReceiver = null;
+    private NioTransport.Connection transportConnection = null;
 
     private Vector<AccData> accDataList = new Vector<AccData>();
     private TokenController tokenController = null;
     private Handler networkHander = null;
     private long frameID = 0;
 
+    // with a NIO transport, samples taken while a packet is being written go out together in the
+    // next one (guarded by batchLock)
+    private final Object batchLock = new Object();
+    private final ByteBuffer batchedSamples = ByteBuffer.allocate(MAX_BATCHED_SAMPLES * ACC_DATA_SIZE);
+    private boolean isSendingBatch = false;
+    private final Runnable onBatchWritten = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (batchLock) {
+                isSendingBatch = false;
+                sendBatch();
+            }
+        }
+    };
+
     class AccData{
         public int sentTime;
         public float x, y, z;
@@ -72,16 +93,28 @@ public class AccStreamingThread extends Thread {
         remotePort = port;
     }
 
+    /**
+     * Uses a connection opened by the cloudlet launcher instead of connecting in run()
+     */
+    public void setPreconnectedSocket(ParcelFileDescriptor socket) {
+        this.preconnectedSocket = socket;
+    }
+
+    /**
+     * Sends samples on a connection of transport, batched per write; the thread is then not started
+     */
+    public void attachTo(NioTransport transport) {
+        this.transportConnection = transport.open(remotePort, new AccControlThread(null, this.networkHander));
+    }
+
     public void run() {
         this.is_running = true;
         Log.i(LOG_TAG, "ACC thread running");
 
         try {
-            tcpSocket = new Socket();
-            tcpSocket.setTcpNoDelay(true);
-            tcpSocket.connect(new InetSocketAddress(remoteIP, remotePort), 5*1000);
-            networkWriter = new DataOutputStream(tcpSocket.getOutputStream());
-            DataInputStream networkReader = new DataInputStream(tcpSocket.getInputStream());
+            connection = new ServerConnection(remoteIP, remotePort, preconnectedSocket, 0);
+            networkWriter = connection.getWriter();
+            DataInputStream networkReader = connection.getReader();
             networkReceiver = new AccControlThread(networkReader, this.networkHander);
             networkReceiver.start();
         } catch (IOException e) {
@@ -135,15 +168,8 @@ public class AccStreamingThread extends Thread {
 
     public boolean stopStreaming() {
         is_running = false;
-        if (tcpSocket != null) {
-            try {
-                tcpSocket.close();
-            } catch (IOException e) {}
-        }
-        if (networkWriter != null) {
-            try {
-                networkWriter.close();
-            } catch (IOException e) {}
+        if (connection != null) {
+            connection.close();
         }
         if (networkReceiver != null) {
             networkReceiver.close();
@@ -164,10 +190,49 @@ public class AccStreamingThread extends Thread {
         }
         currentUpdateTime = System.currentTimeMillis();
         sentframeCount++;
-        this.accDataList.add(new AccData((int)(currentUpdateTime-firstStartTime), sensor[0], sensor[1], sensor[2]));
+        if (transportConnection != null) { // no sending thread, the transport sends the batch
+            synchronized (batchLock) {
+                if (batchedSamples.remaining() >= ACC_DATA_SIZE) {
+                    batchedSamples.putInt((int)(currentUpdateTime-firstStartTime));
+                    batchedSamples.putFloat(sensor[0]);
+                    batchedSamples.putFloat(sensor[1]);
+                    batchedSamples.putFloat(sensor[2]);
+                }
+                if (!isSendingBatch) {
+                    sendBatch();
+                }
+            }
+        } else {
+            this.accDataList.add(new AccData((int)(currentUpdateTime-firstStartTime), sensor[0], sensor[1], sensor[2]));
+        }
         prevUpdateTime = currentUpdateTime;
     }
 
+    /**
+     * Queues all batched samples as one packet, unless there are none; guarded by batchLock.
+     * The next batch is sent once this one is written.
+     */
+    private void sendBatch() {
+        if (batchedSamples.position() == 0) {
+            return;
+        }
+        byte[] header = ("{\"id\":" + this.frameID + "}").getBytes();
+        batchedSamples.flip();
+        ByteBuffer packet = ByteBuffer.allocate(4 + 4 + header.length + batchedSamples.remaining());
+        packet.putInt(header.length);
+        packet.putInt(batchedSamples.remaining());
+        packet.put(header);
+        packet.put(batchedSamples);
+        packet.flip();
+        batchedSamples.clear();
+        this.frameID++;
+        isSendingBatch = true;
+        if (!transportConnection.send(new ByteBuffer[]{packet}, onBatchWritten)) {
+            // dropped, and onBatchWritten has already run
+            isSendingBatch = false;
+        }
+    }
+
     private void notifyError(String message) {
         // callback
         Message msg = Message.obtain();
@@ -14,16 +14,13 @@
 
 package edu.cmu.cs.gabriel.network;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.Queue;
 
@@ -33,27 +30,37 @@ import org.json.JSONObject;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import edu.cmu.cs.gabriel.Const;
 import edu.cmu.cs.gabriel.token.TokenController;
 
-public class ControlThread extends Thread {
+public class ControlThread extends Thread implements NioTransport.MessageHandler {
 
     private static final String LOG_TAG = "Control";
 
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
     
     Queue<String> cmdQueue = new LinkedList<String>();
 
     // TCP connection
     private InetAddress remoteIP;
     private int remotePort;
-    private Socket tcpSocket = null;
+    private ParcelFileDescriptor preconnectedSocket = null;
+    private ServerConnection connection = null;
     private DataOutputStream networkWriter = null;
     private DataInputStream networkReader = null;
+    private ServerReader serverReader = null;
 
     private Object cmdLock = new Object();
 
+    // when attached to a NIO transport, the connection used instead of the one above
+    private NioTransport.Connection transportConnection = null;
+    // time sync in progress, one round trip per server answer (guarded by cmdLock)
+    private int pingsLeft = 0;
+    private long pingSentTime = 0;
+    private long minPingDiff, bestSentTime, bestServerTime, bestRecvTime;
+
     private Handler mainHandler = null;
     private TokenController tokenController = null;
 
@@ -75,6 +82,9 @@ public class ControlThread extends Thread {
      */
     private String receiveMsg(DataInputStream reader) throws SocketException, IOException {
         int retLength = reader.readInt();
+        if (retLength < 0 || retLength > NetworkProtocol.MAX_MESSAGE_SIZE) {
+            throw new IOException("invalid message length " + retLength);
+        }
         byte[] recvByte = new byte[retLength];
         int readSize = 0;
         while(readSize < retLength){
@@ -88,18 +98,22 @@ public class ControlThread extends Thread {
         return receivedString;
     }
 
+    /**
+     * Uses a connection opened by the cloudlet launcher instead of connecting in run()
+     */
+    public void setPreconnectedSocket(ParcelFileDescriptor socket) {
+        this.preconnectedSocket = socket;
+    }
+
     public void run() {
         this.isRunning = true;
         Log.i(LOG_TAG, "Streaming thread running");
 
         // initialization of the TCP connection
         try {
-            tcpSocket = new Socket();
-            tcpSocket.setTcpNoDelay(true);
-            tcpSocket.setSoTimeout(500);
-            tcpSocket.connect(new InetSocketAddress(remoteIP, remotePort), 5 * 1000);
-            networkWriter = new DataOutputStream(tcpSocket.getOutputStream());
-            networkReader = new DataInputStream(tcpSocket.getInputStream());
+            connection = new ServerConnection(remoteIP, remotePort, preconnectedSocket, 0);
+            networkWriter = connection.getWriter();
+            networkReader = connection.getReader();
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error in initializing network socket: " + e);
             this.notifyError(e.getMessage());
@@ -107,85 +121,27 @@ public class ControlThread extends Thread {
             return;
         }
 
+        // server messages are read on their own thread with blocking reads, so neither side polls
+        serverReader = new ServerReader();
+        serverReader.start();
+
+        // handle commands from the client as they come
         while (this.isRunning) {
-            // first check if server has sent any message
             try {
-                String recvMsg = this.receiveMsg(networkReader);
-                // convert the message to JSON
-                JSONObject obj = new JSONObject(recvMsg);
-                String controlMsg = obj.getString(NetworkProtocol.HEADER_MESSAGE_CONTROL);
-                
-                if (controlMsg != null){
-                    Message msg = Message.obtain();
-                    msg.what = NetworkProtocol.NETWORK_RET_CONFIG;
-                    msg.obj = controlMsg;
-                    this.mainHandler.sendMessage(msg);
-                }
-            } catch (SocketTimeoutException e) {
-                //Log.v(LOG_TAG, "no server command");
-            } catch (JSONException e) {
-                Log.e(LOG_TAG, "server command format error!");
-            } catch (IOException e) {
-                Log.e(LOG_TAG, "network error: " + e);
-            }
-
-            // next check if the client has any message to send
-            try {    
-                // get command in the queue
-                String command = null;
-                synchronized(cmdLock){
-                    if (!this.cmdQueue.isEmpty()){
-                        command = cmdQueue.remove();
+                synchronized (cmdLock) {
+                    while (this.isRunning && this.cmdQueue.isEmpty()) {
+                        cmdLock.wait();
                     }
-                }
-                
-                if (command == null) continue; 
-                Log.v(LOG_TAG, "Processing command from client:" + command);
-                // process commands
-                if (command.equals("ping")) {
-                    long min_diff = 1000000;
-                    long bestSentTime = 0, bestServerTime = 0, bestRecvTime = 0;
-                    for (int i = 0; i < Const.MAX_PING_TIMES; i++) {
-                        // send current time to server
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        DataOutputStream dos = new DataOutputStream(baos);
-                        long sentTime = System.currentTimeMillis();
-                        byte[] jsonData = ("{\"sync_time\":" + sentTime + "}").getBytes();
-                        dos.writeInt(jsonData.length);
-                        dos.write(jsonData);
-                        networkWriter.write(baos.toByteArray());
-                        networkWriter.flush();
-
-                        // receive current time at server
-                        String recvMsg = this.receiveMsg(networkReader);
-                        long serverTime = -1;
-                        try{
-                            JSONObject obj = new JSONObject(recvMsg);
-                            serverTime = obj.getLong("sync_time");
-                        } catch(JSONException e){
-                            Log.e(LOG_TAG, "Sync time with server error!!");
-                        }
-                        
-                        long recvTime = System.currentTimeMillis();
-                        if (recvTime - sentTime < min_diff) {
-                            min_diff = recvTime - sentTime;
-                            bestSentTime = sentTime;
-                            bestServerTime = serverTime;
-                            bestRecvTime = recvTime;
-                        }
+                    if (!this.isRunning) break;
+                    String command = cmdQueue.remove();
+                    Log.v(LOG_TAG, "Processing command from client:" + command);
+                    // process commands
+                    if (command.equals("ping")) {
+                        startPing();
                     }
-
-                    // send message to token controller, actually for logging...
-                    Message msg = Message.obtain();
-                    msg.what = NetworkProtocol.NETWORK_RET_SYNC;
-                    String sync_str = "" + bestSentTime + "\t" + bestServerTime + "\t" + bestRecvTime + "\n";
-                    msg.obj = sync_str;
-                    Log.i(LOG_TAG, sync_str);
-                    tokenController.writeString(sync_str);
-                    //tokenController.tokenHandler.sendMessage(msg);
                 }
-            } catch (SocketException e) {
-                Log.v(LOG_TAG, "no server command");
+            } catch (InterruptedException e) {
+                break;
             } catch (IOException e) {
                 Log.e(LOG_TAG, "Error in sending packet: " + e);
                 this.notifyError(e.getMessage());
@@ -196,27 +152,137 @@ public class ControlThread extends Thread {
         this.isRunning = false;
     }
 
+    /**
+     * Reads server messages until the connection is closed, and hands them to onMessage
+     */
+    private class ServerReader extends Thread {
+        @Override
+        public void run() {
+            while (isRunning) {
+                try {
+                    onMessage(receiveMsg(networkReader));
+                } catch (IOException e) {
+                    if (isRunning) {
+                        Log.e(LOG_TAG, "network error: " + e);
+                        notifyError(e.getMessage());
+                        close();
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private void reportSync(long bestSentTime, long bestServerTime, long bestRecvTime) {
+        // send message to token controller, actually for logging...
+        Message msg = Message.obtain();
+        msg.what = NetworkProtocol.NETWORK_RET_SYNC;
+        String sync_str = "" + bestSentTime + "\t" + bestServerTime + "\t" + bestRecvTime + "\n";
+        msg.obj = sync_str;
+        Log.i(LOG_TAG, sync_str);
+        tokenController.writeString(sync_str);
+        //tokenController.tokenHandler.sendMessage(msg);
+    }
+
     /**
      * Called to send a new control message to the server
      */
     public void sendControlMsg(String command) {
         Log.v(LOG_TAG, "++sendControlMsg");
         synchronized (cmdLock) {
-            cmdQueue.add(command);
+            if (transportConnection == null) {
+                cmdQueue.add(command);
+                cmdLock.notify();
+            } else if (command.equals("ping")) {
+                try {
+                    startPing();
+                } catch (IOException e) {
+                    // the transport reports its own errors
+                }
+            }
+        }
+    }
+
+    /**
+     * Uses a connection of transport instead of connecting in run(); the thread is then not started
+     */
+    public void attachTo(NioTransport transport) {
+        this.transportConnection = transport.open(remotePort, this);
+    }
+
+    // guarded by cmdLock
+    private void startPing() throws IOException {
+        pingsLeft = Const.MAX_PING_TIMES;
+        minPingDiff = 1000000;
+        bestSentTime = bestServerTime = bestRecvTime = 0;
+        sendSyncTime();
+    }
+
+    // guarded by cmdLock
+    private void sendSyncTime() throws IOException {
+        pingSentTime = System.currentTimeMillis();
+        byte[] jsonData = ("{\"sync_time\":" + pingSentTime + "}").getBytes();
+        ByteBuffer packet = ByteBuffer.allocate(4 + jsonData.length);
+        packet.putInt(jsonData.length);
+        packet.put(jsonData);
+        packet.flip();
+        if (transportConnection != null) {
+            transportConnection.send(packet);
+        } else {
+            networkWriter.write(packet.array());
+            networkWriter.flush();
+        }
+    }
+
+    /**
+     * Handles one server message, from the reader thread or the NIO transport
+     */
+    @Override
+    public void onMessage(String recvMsg) {
+        try {
+            JSONObject obj = new JSONObject(recvMsg);
+            synchronized (cmdLock) {
+                if (pingsLeft > 0 && obj.has("sync_time")) {
+                    long recvTime = System.currentTimeMillis();
+                    if (recvTime - pingSentTime < minPingDiff) {
+                        minPingDiff = recvTime - pingSentTime;
+                        bestSentTime = pingSentTime;
+                        bestServerTime = obj.getLong("sync_time");
+                        bestRecvTime = recvTime;
+                    }
+                    pingsLeft--;
+                    if (pingsLeft > 0) {
+                        sendSyncTime();
+                    } else {
+                        reportSync(bestSentTime, bestServerTime, bestRecvTime);
+                    }
+                    return;
+                }
+            }
+            String controlMsg = obj.getString(NetworkProtocol.HEADER_MESSAGE_CONTROL);
+            if (controlMsg != null){
+                Message msg = Message.obtain();
+                msg.what = NetworkProtocol.NETWORK_RET_CONFIG;
+                msg.obj = controlMsg;
+                this.mainHandler.sendMessage(msg);
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "server command format error!");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error in sending packet: " + e);
+            this.notifyError(e.getMessage());
+            close();
         }
     }
 
     public void close() {
         isRunning = false;
-        if (tcpSocket != null) {
-            try {
-                tcpSocket.close();
-            } catch (IOException e) {}
+        // closing first also ends a write the command loop may be blocked in
+        if (connection != null) {
+            connection.close();
         }
-        if (networkWriter != null) {
-            try {
-                networkWriter.close();
-            } catch (IOException e) {}
+        synchronized (cmdLock) {
+            cmdLock.notify();
         }
     }
 
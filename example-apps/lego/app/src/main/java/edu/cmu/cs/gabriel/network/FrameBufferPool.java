@@ -0,0 +1,97 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package edu.cmu.cs.gabriel.network;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable buffers for encoded frames.
+ * The encoder compresses straight into a pooled buffer, the sender writes it out as a ByteBuffer
+ * view of the same bytes, and then releases it here, so a frame is never copied on its way to
+ * the socket and steady-state streaming allocates no frame buffers. Images that are already JPEG
+ * are wrapped in a FrameBuffer instead of being copied into a pooled one.
+ */
+public class FrameBufferPool {
+
+    public static class FrameBuffer extends ByteArrayOutputStream {
+        private ByteBuffer view = null;
+        // false if the buffer wraps an existing image, which is not reused
+        private final boolean isPooled;
+
+        FrameBuffer(int size) {
+            super(size);
+            this.isPooled = true;
+        }
+
+        FrameBuffer(byte[] data) {
+            super(0);
+            this.buf = data;
+            this.count = data.length;
+            this.isPooled = false;
+        }
+
+        /**
+         * @return the written bytes, without copying them; only valid until the buffer is reused
+         */
+        public ByteBuffer asByteBuffer() {
+            if (view == null || view.array() != buf) { // the array grows as needed
+                view = ByteBuffer.wrap(buf);
+            }
+            view.clear();
+            view.limit(count);
+            return view;
+        }
+    }
+
+    private final int initialSize;
+    private final ConcurrentLinkedQueue<FrameBuffer> freeBuffers = new ConcurrentLinkedQueue<FrameBuffer>();
+    private final AtomicLong allocationCount = new AtomicLong();
+
+    public FrameBufferPool(int initialSize) {
+        this.initialSize = initialSize;
+    }
+
+    /**
+     * @return an empty buffer, allocated only if all buffers are in use
+     */
+    public FrameBuffer acquire() {
+        FrameBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            allocationCount.incrementAndGet();
+            return new FrameBuffer(initialSize);
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * @return a buffer holding data as it is, without copying it; releasing it only drops it
+     */
+    public FrameBuffer wrap(byte[] data) {
+        return new FrameBuffer(data);
+    }
+
+    public void release(FrameBuffer buffer) {
+        if (buffer != null && buffer.isPooled) {
+            freeBuffers.add(buffer);
+        }
+    }
+
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+}
@@ -0,0 +1,171 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package edu.cmu.cs.gabriel.network;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.util.Log;
+import edu.cmu.cs.gabriel.network.FrameBufferPool.FrameBuffer;
+import edu.cmu.cs.gabriel.token.TokenController;
+
+/**
+ * Encoder stage of the video pipeline.
+ * The camera callback only hands raw preview frames over, and this thread compresses the latest
+ * one to JPEG while the streaming thread is still sending the previous frame.
+ *
+ * Frames are only encoded when they can be sent: the encoder takes a token before taking a frame,
+ * so while all tokens are in use new frames just replace each other unencoded, and the freshest
+ * one is encoded as soon as a token frees up.
+ */
+public class FrameEncoderThread extends Thread {
+    private static final String LOG_TAG = "FrameEncoder";
+
+    // chooses quality 67 and it roughly matches quality 5 in avconv
+    private static final int JPEG_QUALITY = 67;
+
+    public static class RawFrame {
+        // counts captured frames, so gaps in the IDs of sent frames show the dropped ones
+        public final long frameID;
+        // preview data, or an already encoded image if format is ImageFormat.JPEG
+        public final byte[] data;
+        public final int format;
+        public final int width;
+        public final int height;
+        public final long captureTime;
+
+        public RawFrame(long frameID, byte[] data, int format, int width, int height, long captureTime) {
+            this.frameID = frameID;
+            this.data = data;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.captureTime = captureTime;
+        }
+    }
+
+    public static class EncodedFrame {
+        public final long frameID;
+        // to be released to the frame buffer pool once sent
+        public final FrameBuffer data;
+        public final long captureTime;
+        public final long encodedTime;
+
+        public EncodedFrame(long frameID, FrameBuffer data, long captureTime, long encodedTime) {
+            this.frameID = frameID;
+            this.data = data;
+            this.captureTime = captureTime;
+            this.encodedTime = encodedTime;
+        }
+    }
+
+    /**
+     * Takes back raw frame buffers once they have been encoded or dropped
+     */
+    public interface BufferRecycler {
+        void recycle(byte[] buffer);
+    }
+
+    private final LatestSlot<RawFrame> rawFrames = new LatestSlot<RawFrame>();
+    private final LatestSlot<EncodedFrame> encodedFrames;
+    private final FrameBufferPool frameBufferPool;
+    private final PipelineStats stats;
+    private final TokenController tokenController;
+    private volatile BufferRecycler bufferRecycler = null;
+    private volatile boolean isClosed = false;
+
+    public FrameEncoderThread(LatestSlot<EncodedFrame> encodedFrames, FrameBufferPool frameBufferPool,
+                              PipelineStats stats, TokenController tokenController) {
+        super("FrameEncoder");
+        this.encodedFrames = encodedFrames;
+        this.frameBufferPool = frameBufferPool;
+        this.stats = stats;
+        this.tokenController = tokenController;
+    }
+
+    public void setBufferRecycler(BufferRecycler bufferRecycler) {
+        this.bufferRecycler = bufferRecycler;
+    }
+
+    /**
+     * Called on the camera callback; replaces a frame that has not been encoded yet
+     */
+    public void push(RawFrame frame) {
+        RawFrame dropped = rawFrames.put(frame);
+        if (dropped != null) {
+            stats.countDrop(PipelineStats.STAGE_ENCODE);
+            recycle(dropped);
+        }
+    }
+
+    private void recycle(RawFrame frame) {
+        BufferRecycler recycler = this.bufferRecycler;
+        if (recycler != null && frame.format != ImageFormat.JPEG) {
+            recycler.recycle(frame.data);
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.i(LOG_TAG, "Encoder thread running");
+        while (!isClosed) {
+            // getCurrentToken blocks until there is a token (or close interrupts it)
+            if (tokenController.getCurrentToken() <= 0) {
+                continue;
+            }
+            RawFrame frame = rawFrames.take();
+            if (frame == null) {
+                break;
+            }
+            long tStart = System.currentTimeMillis();
+            stats.record(PipelineStats.STAGE_ENCODE_WAIT, tStart - frame.captureTime);
+
+            // compresses straight into the buffer the sender will write out, and hands JPEG
+            // images over as they are
+            FrameBuffer data;
+            if (frame.format == ImageFormat.JPEG) {
+                data = frameBufferPool.wrap(frame.data);
+            } else {
+                data = frameBufferPool.acquire();
+                YuvImage image = new YuvImage(frame.data, frame.format, frame.width, frame.height, null);
+                image.compressToJpeg(new Rect(0, 0, frame.width, frame.height), JPEG_QUALITY, data);
+                recycle(frame);
+            }
+
+            long tEncoded = System.currentTimeMillis();
+            stats.record(PipelineStats.STAGE_ENCODE, tEncoded - tStart);
+            // the token is consumed here, since only this thread takes tokens; the sender sends
+            // every frame it gets
+            tokenController.decreaseToken();
+            EncodedFrame dropped = encodedFrames.put(new EncodedFrame(frame.frameID, data, frame.captureTime, tEncoded));
+            if (dropped != null) {
+                // never sent, so it will never be acknowledged
+                stats.countDrop(PipelineStats.STAGE_SEND);
+                tokenController.increaseTokens(1);
+                frameBufferPool.release(dropped.data);
+            }
+        }
+        Log.i(LOG_TAG, "Encoder thread stopped");
+    }
+
+    public void close() {
+        isClosed = true;
+        // wakes the thread up if it waits for a token
+        interrupt();
+        RawFrame remaining = rawFrames.close();
+        if (remaining != null) {
+            recycle(remaining);
+        }
+    }
+}
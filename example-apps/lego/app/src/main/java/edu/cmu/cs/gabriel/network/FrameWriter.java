@@ -0,0 +1,127 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package edu.cmu.cs.gabriel.network;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+import edu.cmu.cs.gabriel.network.FrameBufferPool.FrameBuffer;
+
+/**
+ * Writes video frames in the Gabriel framing: header length, JSON header {"frame_id":N},
+ * payload length, payload.
+ * The header is built in a reused buffer and written together with the payload in one gathering
+ * write, so framing neither copies the payload nor allocates per frame. Written frame buffers go
+ * back to their pool.
+ *
+ * With a NIO transport, the frame is queued instead and released once the transport has written
+ * or dropped it; each queued frame then gets its own header.
+ */
+public class FrameWriter {
+    private static final byte[] HEADER_PREFIX = ("{\"" + NetworkProtocol.HEADER_MESSAGE_FRAME_ID + "\":").getBytes();
+    private static final byte HEADER_SUFFIX = '}';
+    // two lengths, the JSON header and up to 20 digits of the frame ID
+    private static final int HEADER_CAPACITY = 4 + HEADER_PREFIX.length + 20 + 1 + 4;
+
+    // null if the connection has no channel, then header and payload go to the stream
+    private final GatheringByteChannel channel;
+    private final DataOutputStream stream;
+    // set instead of channel and stream when frames go through a NIO transport
+    private final NioTransport.Connection transportConnection;
+    private final FrameBufferPool frameBufferPool;
+
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_CAPACITY);
+    private final ByteBuffer[] packet = new ByteBuffer[2];
+
+    public FrameWriter(GatheringByteChannel channel, DataOutputStream stream, FrameBufferPool frameBufferPool) {
+        this.channel = channel;
+        this.stream = stream;
+        this.transportConnection = null;
+        this.frameBufferPool = frameBufferPool;
+    }
+
+    public FrameWriter(NioTransport.Connection transportConnection, FrameBufferPool frameBufferPool) {
+        this.channel = null;
+        this.stream = null;
+        this.transportConnection = transportConnection;
+        this.frameBufferPool = frameBufferPool;
+    }
+
+    /**
+     * Writes frame as frameID (or queues it with a NIO transport), then releases it to the pool
+     */
+    public void write(long frameID, final FrameBuffer frame) throws IOException {
+        ByteBuffer payload = frame.asByteBuffer();
+        if (transportConnection != null) {
+            ByteBuffer queuedHeader = ByteBuffer.allocate(HEADER_CAPACITY);
+            fillHeader(queuedHeader, frameID, payload.remaining());
+            boolean isQueued = transportConnection.send(new ByteBuffer[]{queuedHeader, payload}, new Runnable() {
+                @Override
+                public void run() {
+                    frameBufferPool.release(frame);
+                }
+            });
+            if (!isQueued) { // the frame is released already
+                throw new IOException("frame " + frameID + " dropped by the transport");
+            }
+            return;
+        }
+
+        fillHeader(header, frameID, payload.remaining());
+        try {
+            if (channel != null) {
+                packet[0] = header;
+                packet[1] = payload;
+                while (header.hasRemaining() || payload.hasRemaining()) {
+                    channel.write(packet);
+                }
+                packet[1] = null;
+            } else {
+                stream.write(header.array(), 0, header.limit());
+                stream.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+                stream.flush();
+            }
+        } finally {
+            frameBufferPool.release(frame);
+        }
+    }
+
+    private static void fillHeader(ByteBuffer header, long frameID, int payloadLength) {
+        header.clear();
+        int digitCount = countDigits(frameID);
+        header.putInt(HEADER_PREFIX.length + digitCount + 1);
+        header.put(HEADER_PREFIX);
+        int end = header.position() + digitCount;
+        for (int i = end - 1; i >= end - digitCount; i--) {
+            header.put(i, (byte) ('0' + frameID % 10));
+            frameID /= 10;
+        }
+        header.position(end);
+        header.put(HEADER_SUFFIX);
+        header.putInt(payloadLength);
+        header.flip();
+    }
+
+    // frame IDs are never negative
+    private static int countDigits(long value) {
+        int count = 1;
+        while (value >= 10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+}
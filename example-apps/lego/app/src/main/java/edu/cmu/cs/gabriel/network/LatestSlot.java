@@ -0,0 +1,67 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package edu.cmu.cs.gabriel.network;
+
+/**
+ * Handoff of one item between two pipeline stages.
+ * A new item replaces one the consumer has not taken yet, so the producer never blocks and a slow
+ * consumer always gets the freshest item.
+ */
+public class LatestSlot<T> {
+    private T item = null;
+    private boolean isClosed = false;
+
+    /**
+     * @return the item that was replaced without being taken, or null; newItem itself once the
+     * slot is closed, since nothing will take it anymore
+     */
+    public synchronized T put(T newItem) {
+        if (this.isClosed) {
+            return newItem;
+        }
+        T replaced = this.item;
+        this.item = newItem;
+        notifyAll();
+        return replaced;
+    }
+
+    /**
+     * Blocks until there is an item
+     * @return the item, or null if the slot has been closed
+     */
+    public synchronized T take() {
+        while (this.item == null && !this.isClosed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        T taken = this.item;
+        this.item = null;
+        return taken;
+    }
+
+    /**
+     * Wakes up the consumer
+     * @return the item that was never taken, or null
+     */
+    public synchronized T close() {
+        this.isClosed = true;
+        T remaining = this.item;
+        this.item = null;
+        notifyAll();
+        return remaining;
+    }
+}
@@ -35,4 +35,7 @@ public class NetworkProtocol {
     public static final String HEADER_MESSAGE_INJECT_TOKEN = "token_inject";
     public static final String HEADER_MESSAGE_FRAME_ID = "frame_id";
     public static final String HEADER_MESSAGE_ENGINE_ID = "engine_id";
+
+    // longest length-prefixed message accepted from the server, anything longer means the stream is corrupt
+    public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
 }
@@ -0,0 +1,344 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package edu.cmu.cs.gabriel.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+/**
+ * Optional single-thread transport for the video, acc, result and control connections.
+ *
+ * One selector drives all connections as non-blocking SocketChannels. Writes are queued per
+ * connection and flushed with gathering writes whenever the channel is writable, and reads are
+ * split into the length-prefixed messages the server sends and handed to a MessageHandler on this
+ * thread. Nothing sleeps or polls: the thread only wakes up for socket events and newly queued
+ * writes.
+ */
+public class NioTransport extends Thread {
+    private static final String LOG_TAG = "NioTransport";
+
+    private static final int CONNECT_TIMEOUT = 5 * 1000;
+    // writes queued on one connection before further ones are dropped
+    private static final int MAX_QUEUED_WRITES = 64;
+
+    public interface MessageHandler {
+        /**
+         * Called on the transport thread for every message received on a connection
+         */
+        void onMessage(String message);
+    }
+
+    private static class Write {
+        final ByteBuffer[] buffers;
+        final Runnable onWritten;
+
+        Write(ByteBuffer[] buffers, Runnable onWritten) {
+            this.buffers = buffers;
+            this.onWritten = onWritten;
+        }
+
+        boolean hasRemaining() {
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) return true;
+            }
+            return false;
+        }
+    }
+
+    public class Connection {
+        private final int port;
+        // null if messages from the server are ignored
+        private final MessageHandler handler;
+        private SocketChannel channel = null;
+        private SelectionKey key = null;
+        private final ConcurrentLinkedQueue<Write> writes = new ConcurrentLinkedQueue<Write>();
+        private final AtomicInteger queuedCount = new AtomicInteger();
+
+        // read framing: a 4-byte length, then the message
+        private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        private ByteBuffer messageBuffer = null;
+
+        Connection(int port, MessageHandler handler) {
+            this.port = port;
+            this.handler = handler;
+        }
+
+        /**
+         * Queues buffers to be written in order; can be called from any thread
+         * @param onWritten run once the buffers are no longer used, may be null: on the transport
+         *                  thread after they are written, or right away if the write is dropped
+         * @return false if the write was dropped, because the transport has stopped or too many
+         *         writes are queued on this connection
+         */
+        public boolean send(ByteBuffer[] buffers, Runnable onWritten) {
+            if (isStopped) {
+                drop(onWritten);
+                return false;
+            }
+            if (queuedCount.incrementAndGet() > MAX_QUEUED_WRITES) {
+                queuedCount.decrementAndGet();
+                Log.w(LOG_TAG, "write dropped, too many writes queued on port " + port);
+                drop(onWritten);
+                return false;
+            }
+            writes.add(new Write(buffers, onWritten));
+            if (isShutDown) { // shutdown() may have dropped the queued writes before this one came
+                dropWrites(this);
+                return false;
+            }
+            pendingWrites.add(this);
+            selector.wakeup();
+            return true;
+        }
+
+        public boolean send(ByteBuffer buffer) {
+            return send(new ByteBuffer[]{buffer}, null);
+        }
+    }
+
+    private volatile boolean isRunning = false;
+    // set for good by close() or shutdown(), after which new writes are dropped
+    private volatile boolean isStopped = false;
+    // set once the transport thread no longer writes, so queued writes can be dropped from any thread
+    private volatile boolean isShutDown = false;
+    private InetAddress remoteIP;
+    private final Selector selector;
+    private final List<Connection> connections = new ArrayList<Connection>();
+    // connections with newly queued writes, to start watching them for writability
+    private final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+    private Handler returnMsgHandler = null;
+
+    private final AtomicLong wakeupCount = new AtomicLong();
+
+    public NioTransport(String serverIP, Handler returnMsgHandler) throws IOException {
+        super("NioTransport");
+        this.returnMsgHandler = returnMsgHandler;
+        try {
+            remoteIP = InetAddress.getByName(serverIP);
+        } catch (UnknownHostException e) {
+            Log.e(LOG_TAG, "unknown host: " + e.getMessage());
+        }
+        selector = Selector.open();
+    }
+
+    /**
+     * Adds a connection to port of the server; must be called before start()
+     */
+    public Connection open(int port, MessageHandler handler) {
+        Connection connection = new Connection(port, handler);
+        connections.add(connection);
+        return connection;
+    }
+
+    @Override
+    public void run() {
+        this.isRunning = true;
+        Log.i(LOG_TAG, "Transport thread running");
+
+        int connectingCount = 0;
+        try {
+            for (Connection connection : connections) {
+                connection.channel = SocketChannel.open();
+                connection.channel.configureBlocking(false);
+                connection.channel.socket().setTcpNoDelay(true);
+                if (connection.channel.connect(new InetSocketAddress(remoteIP, connection.port))) {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                } else {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                    connectingCount++;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error in initializing network socket: " + e);
+            this.notifyError(e.getMessage());
+            this.shutdown();
+            return;
+        }
+
+        long connectDeadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (this.isRunning) {
+            try {
+                // watch connections with newly queued writes (connecting ones do once connected)
+                Connection pending;
+                while ((pending = pendingWrites.poll()) != null) {
+                    SelectionKey key = pending.key;
+                    if ((key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                if (connectingCount > 0) {
+                    long remaining = connectDeadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new IOException("connect timed out");
+                    }
+                    selector.select(remaining);
+                } else {
+                    selector.select();
+                }
+                wakeupCount.incrementAndGet();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isConnectable()) {
+                        if (!connection.channel.finishConnect()) {
+                            continue;
+                        }
+                        connectingCount--;
+                        key.interestOps(SelectionKey.OP_READ
+                                | (connection.writes.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(connection);
+                    }
+                }
+            } catch (IOException e) {
+                if (this.isRunning) {
+                    Log.e(LOG_TAG, "Network error: " + e);
+                    this.notifyError(e.getMessage());
+                }
+                break;
+            }
+        }
+        this.shutdown();
+    }
+
+    private void read(Connection connection) throws IOException {
+        while (true) {
+            ByteBuffer target = connection.messageBuffer == null ? connection.lengthBuffer : connection.messageBuffer;
+            int ret = connection.channel.read(target);
+            if (ret < 0) {
+                throw new IOException("connection to port " + connection.port + " closed by server");
+            }
+            if (target.hasRemaining()) { // nothing more to read for now
+                return;
+            }
+            if (connection.messageBuffer == null) {
+                connection.lengthBuffer.flip();
+                int length = connection.lengthBuffer.getInt();
+                connection.lengthBuffer.clear();
+                if (length < 0 || length > NetworkProtocol.MAX_MESSAGE_SIZE) {
+                    throw new IOException("invalid message length " + length + " on port " + connection.port);
+                }
+                connection.messageBuffer = ByteBuffer.allocate(length);
+            } else {
+                String message = new String(connection.messageBuffer.array());
+                connection.messageBuffer = null;
+                if (connection.handler != null) {
+                    connection.handler.onMessage(message);
+                }
+            }
+        }
+    }
+
+    private void flush(Connection connection) throws IOException {
+        Write write;
+        while ((write = connection.writes.peek()) != null) {
+            connection.channel.write(write.buffers);
+            if (write.hasRemaining()) { // socket buffer full, wait until writable again
+                return;
+            }
+            connection.writes.poll();
+            connection.queuedCount.decrementAndGet();
+            if (write.onWritten != null) {
+                write.onWritten.run();
+            }
+        }
+        connection.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * @return how often the transport thread woke up, for all connections together
+     */
+    public long getWakeupCount() {
+        return wakeupCount.get();
+    }
+
+    public void close() {
+        this.isStopped = true;
+        this.isRunning = false;
+        selector.wakeup();
+    }
+
+    private void shutdown() {
+        this.isStopped = true;
+        this.isShutDown = true;
+        this.isRunning = false;
+        for (Connection connection : connections) {
+            if (connection.channel != null) {
+                try {
+                    connection.channel.close();
+                } catch (IOException e) {}
+            }
+            dropWrites(connection);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {}
+        Log.i(LOG_TAG, "Transport thread stopped after " + wakeupCount.get() + " wakeups");
+    }
+
+    /**
+     * Gives back the buffers of writes that will never be made; safe to call from any thread, as
+     * each write is taken off the queue only once
+     */
+    private static void dropWrites(Connection connection) {
+        Write write;
+        while ((write = connection.writes.poll()) != null) {
+            drop(write.onWritten);
+        }
+    }
+
+    private static void drop(Runnable onWritten) {
+        if (onWritten != null) {
+            onWritten.run();
+        }
+    }
+
+    /**
+     * Notifies error to the main thread
+     */
+    private void notifyError(String message) {
+        Message msg = Message.obtain();
+        msg.what = NetworkProtocol.NETWORK_RET_FAILED;
+        Bundle data = new Bundle();
+        data.putString("message", message);
+        msg.setData(data);
+        this.returnMsgHandler.sendMessage(msg);
+    }
+}
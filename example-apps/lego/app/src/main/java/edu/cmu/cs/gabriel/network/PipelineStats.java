@@ -0,0 +1,100 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package edu.cmu.cs.gabriel.network;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-stage timings of the video pipeline (capture -> encode -> send).
+ * Each stage counts its frames, their total and maximum time, and the frames it dropped because a
+ * newer one arrived before the stage got to it.
+ */
+public class PipelineStats {
+    // time spent in the camera callback
+    public static final String STAGE_CAPTURE = "capture";
+    // from capture until the encoder takes the frame
+    public static final String STAGE_ENCODE_WAIT = "encode_wait";
+    public static final String STAGE_ENCODE = "encode";
+    // from the end of encoding until the sender takes the frame
+    public static final String STAGE_SEND_WAIT = "send_wait";
+    public static final String STAGE_SEND = "send";
+
+    private static class Stage {
+        long count = 0;
+        long totalMs = 0;
+        long maxMs = 0;
+        long dropCount = 0;
+    }
+
+    // guarded by this
+    private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+
+    public PipelineStats() {
+        for (String name : new String[]{STAGE_CAPTURE, STAGE_ENCODE_WAIT, STAGE_ENCODE, STAGE_SEND_WAIT, STAGE_SEND}) {
+            stages.put(name, new Stage());
+        }
+    }
+
+    public synchronized void record(String stage, long ms) {
+        Stage s = stages.get(stage);
+        s.count++;
+        s.totalMs += ms;
+        s.maxMs = Math.max(s.maxMs, ms);
+    }
+
+    public synchronized void countDrop(String stage) {
+        stages.get(stage).dropCount++;
+    }
+
+    public synchronized long getCount(String stage) {
+        return stages.get(stage).count;
+    }
+
+    public synchronized long getMean(String stage) {
+        Stage s = stages.get(stage);
+        return s.count == 0 ? 0 : s.totalMs / s.count;
+    }
+
+    public synchronized long getMax(String stage) {
+        return stages.get(stage).maxMs;
+    }
+
+    public synchronized long getDropCount(String stage) {
+        return stages.get(stage).dropCount;
+    }
+
+    /**
+     * @return frames encoded per frame sent, about 1 when encoding waits for tokens
+     */
+    public synchronized double getEncodesPerSentFrame() {
+        long sent = stages.get(STAGE_SEND).count;
+        return sent == 0 ? 0 : (double) stages.get(STAGE_ENCODE).count / sent;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Stage> e : stages.entrySet()) {
+            Stage s = e.getValue();
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(e.getKey()).append(": n=").append(s.count)
+                    .append(" mean=").append(s.count == 0 ? 0 : s.totalMs / s.count).append("ms")
+                    .append(" max=").append(s.maxMs).append("ms");
+            if (s.dropCount > 0) sb.append(" dropped=").append(s.dropCount);
+        }
+        sb.append(", encodes per sent frame: ").append(getEncodesPerSentFrame());
+        return sb.toString();
+    }
+}
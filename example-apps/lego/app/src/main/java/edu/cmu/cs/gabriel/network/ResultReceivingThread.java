@@ -19,8 +19,6 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -33,11 +31,12 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Handler;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.util.Base64;
 import android.util.Log;
 import edu.cmu.cs.gabriel.token.ReceivedPacketInfo;
 
-public class ResultReceivingThread extends Thread {
+public class ResultReceivingThread extends Thread implements NioTransport.MessageHandler {
 
     private static final String LOG_TAG = "ResultThread";
 
@@ -46,7 +45,8 @@ public class ResultReceivingThread extends Thread {
     // TCP connection
     private InetAddress remoteIP;
     private int remotePort;
-    private Socket tcpSocket;
+    private ParcelFileDescriptor preconnectedSocket = null;
+    private ServerConnection connection = null;
     private DataOutputStream networkWriter;
     private DataInputStream networkReader;
 
@@ -71,17 +71,35 @@ public class ResultReceivingThread extends Thread {
         remotePort = port;
     }
 
+    /**
+     * Uses a connection opened by the cloudlet launcher instead of connecting in run()
+     */
+    public void setPreconnectedSocket(ParcelFileDescriptor socket) {
+        this.preconnectedSocket = socket;
+    }
+
+    /**
+     * Receives results on a connection of transport; the thread is then not started
+     */
+    public void attachTo(NioTransport transport) {
+        this.isRunning = true;
+        transport.open(remotePort, this);
+    }
+
+    @Override
+    public void onMessage(String message) {
+        this.notifyReceivedData(message);
+    }
+
     @Override
     public void run() {
         this.isRunning = true;
         Log.i(LOG_TAG, "Result receiving thread running");
 
         try {
-            tcpSocket = new Socket();
-            tcpSocket.setTcpNoDelay(true);
-            tcpSocket.connect(new InetSocketAddress(remoteIP, remotePort), 5*1000);
-            networkWriter = new DataOutputStream(tcpSocket.getOutputStream());
-            networkReader = new DataInputStream(tcpSocket.getInputStream());
+            connection = new ServerConnection(remoteIP, remotePort, preconnectedSocket, 0);
+            networkWriter = connection.getWriter();
+            networkReader = connection.getReader();
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error in initializing Data socket: " + e);
             this.notifyError(e.getMessage());
@@ -261,14 +279,9 @@ public class ResultReceivingThread extends Thread {
             }
         } catch (IOException e) {
         }
-        try {
-            if(this.tcpSocket != null){
-                this.tcpSocket.shutdownInput();
-                this.tcpSocket.shutdownOutput();
-                this.tcpSocket.close();
-                this.tcpSocket = null;
-            }
-        } catch (IOException e) {
+        if(this.connection != null){
+            this.connection.close();
+            this.connection = null;
         }
     }
 
@@ -0,0 +1,152 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.gabriel.network;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * TCP connection to one Gabriel server port.
+ *
+ * It is either a socket connected by the streaming thread itself, or a connection the cloudlet
+ * launcher opened while announcing the server and handed over as a ParcelFileDescriptor, which
+ * saves one round trip to the cloudlet per port.
+ */
+public class ServerConnection {
+    private static final String LOG_TAG = "ServerConnection";
+
+    private static final int CONNECT_TIMEOUT = 5 * 1000;
+
+    private Socket tcpSocket = null;
+    private ParcelFileDescriptor preconnectedSocket = null;
+    private final DataOutputStream networkWriter;
+    private final DataInputStream networkReader;
+    private GatheringByteChannel channel = null;
+
+    /**
+     * Uses preconnectedSocket if there is one, otherwise connects to (remoteIP, remotePort).
+     * @param soTimeout read timeout of a new socket in ms, or 0 for none; a preconnected socket has none
+     */
+    public ServerConnection(InetAddress remoteIP, int remotePort, ParcelFileDescriptor preconnectedSocket,
+                            int soTimeout) throws IOException {
+        this(remoteIP, remotePort, preconnectedSocket, soTimeout, false);
+    }
+
+    /**
+     * @param isChannelNeeded whether getChannel should be available; a new socket is then opened
+     * through a (blocking) SocketChannel
+     */
+    public ServerConnection(InetAddress remoteIP, int remotePort, ParcelFileDescriptor preconnectedSocket,
+                            int soTimeout, boolean isChannelNeeded) throws IOException {
+        if (preconnectedSocket != null) {
+            this.preconnectedSocket = preconnectedSocket;
+            FileOutputStream out = new FileOutputStream(preconnectedSocket.getFileDescriptor());
+            channel = out.getChannel();
+            networkWriter = new DataOutputStream(out);
+            networkReader = new DataInputStream(new FileInputStream(preconnectedSocket.getFileDescriptor()));
+        } else {
+            if (isChannelNeeded) {
+                SocketChannel socketChannel = SocketChannel.open();
+                channel = socketChannel;
+                tcpSocket = socketChannel.socket();
+            } else {
+                tcpSocket = new Socket();
+            }
+            tcpSocket.setTcpNoDelay(true);
+            if (soTimeout > 0) {
+                tcpSocket.setSoTimeout(soTimeout);
+            }
+            tcpSocket.connect(new InetSocketAddress(remoteIP, remotePort), CONNECT_TIMEOUT);
+            networkWriter = new DataOutputStream(tcpSocket.getOutputStream());
+            networkReader = new DataInputStream(tcpSocket.getInputStream());
+        }
+    }
+
+    public DataOutputStream getWriter() {
+        return networkWriter;
+    }
+
+    public DataInputStream getReader() {
+        return networkReader;
+    }
+
+    /**
+     * @return a channel for gathering writes, or null if the connection was not opened with one
+     */
+    public GatheringByteChannel getChannel() {
+        return channel;
+    }
+
+    public boolean isPreconnected() {
+        return preconnectedSocket != null;
+    }
+
+    public void close() {
+        // shutting the socket down first wakes up a thread blocked reading it, which closing
+        // the descriptor alone does not reliably do
+        if (preconnectedSocket != null) {
+            shutdown(preconnectedSocket.getFileDescriptor());
+        } else {
+            try {
+                tcpSocket.shutdownInput();
+                tcpSocket.shutdownOutput();
+            } catch (IOException e) {}
+        }
+        try {
+            networkReader.close();
+        } catch (IOException e) {}
+        try {
+            networkWriter.close();
+        } catch (IOException e) {}
+        try {
+            if (tcpSocket != null) {
+                tcpSocket.close();
+            }
+            if (preconnectedSocket != null) {
+                preconnectedSocket.close();
+            }
+        } catch (IOException e) {}
+    }
+
+    /**
+     * Os.shutdown(fd, SHUT_RDWR), which only exists from API 21 on; the app is built against
+     * API 19, so it is looked up at run time. Older devices only close the descriptor.
+     */
+    private static void shutdown(FileDescriptor fd) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return;
+        }
+        try {
+            int shutRdWr = Class.forName("android.system.OsConstants").getField("SHUT_RDWR").getInt(null);
+            Class.forName("android.system.Os").getMethod("shutdown", FileDescriptor.class, int.class)
+                    .invoke(null, fd, shutRdWr);
+        } catch (Exception e) { // also ENOTCONN if the server has closed the socket already
+            Log.d(LOG_TAG, "Could not shut down preconnected socket: " + e);
+        }
+    }
+}
@@ -23,8 +23,6 @@ import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 
@@ -33,21 +31,25 @@ import org.json.JSONObject;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
-import android.hardware.Camera.Parameters;
-import android.hardware.Camera.Size;
+import android.graphics.ImageFormat;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import edu.cmu.cs.gabriel.Const;
+import edu.cmu.cs.gabriel.network.FrameEncoderThread.BufferRecycler;
+import edu.cmu.cs.gabriel.network.FrameEncoderThread.EncodedFrame;
+import edu.cmu.cs.gabriel.network.FrameEncoderThread.RawFrame;
 import edu.cmu.cs.gabriel.token.TokenController;
 
 public class VideoStreamingThread extends Thread {
 
     private static final String LOG_TAG = "VideoStreaming";
 
+    // initial size of pooled JPEG buffers, which grow as needed
+    private static final int FRAME_BUFFER_SIZE = 64 * 1024;
+
     private boolean isRunning = false;
     private boolean isPing = true;
     
@@ -63,15 +65,22 @@ public class VideoStreamingThread extends Thread {
     // TCP connection
     private InetAddress remoteIP;
     private int remotePort;
-    private Socket tcpSocket = null;
+    private ParcelFileDescriptor preconnectedSocket = null;
+    private ServerConnection connection = null;
     private DataOutputStream networkWriter = null;
     private DataInputStream networkReader = null;
+    private FrameWriter frameWriter = null;
+    private NioTransport.Connection transportConnection = null;
     private VideoControlThread networkReceiver = null;
 
-    // frame data shared between threads
+    // capture -> encode -> send pipeline, each stage on its own thread
+    // ID of the last captured frame, only used on the camera callback
     private long frameID = 0;
-    private byte[] frameBuffer = null;
-    private Object frameLock = new Object();
+    private LatestSlot<EncodedFrame> encodedFrames = new LatestSlot<EncodedFrame>();
+    private FrameBufferPool frameBufferPool = new FrameBufferPool(FRAME_BUFFER_SIZE);
+    private PipelineStats pipelineStats = new PipelineStats();
+    private FrameEncoderThread encoderThread = null;
+    private BufferRecycler bufferRecycler = null;
 
     private Handler networkHandler = null;
     private TokenController tokenController = null;
@@ -80,6 +89,7 @@ public class VideoStreamingThread extends Thread {
         isRunning = false;
         this.networkHandler = handler;
         this.tokenController = tokenController;
+        this.encoderThread = new FrameEncoderThread(encodedFrames, frameBufferPool, pipelineStats, tokenController);
 
         try {
             remoteIP = InetAddress.getByName(serverIP);
@@ -157,85 +167,87 @@ public class VideoStreamingThread extends Thread {
         return receivedString;
     }
 
+    /**
+     * Uses a connection opened by the cloudlet launcher instead of connecting in run()
+     */
+    public void setPreconnectedSocket(ParcelFileDescriptor socket) {
+        this.preconnectedSocket = socket;
+    }
+
+    /**
+     * Queues frames on a connection of transport instead of connecting in run(); this thread then
+     * only takes encoded frames and hands them to the transport
+     */
+    public void attachTo(NioTransport transport) {
+        this.transportConnection = transport.open(remotePort, null);
+    }
+
     public void run() {
         this.isRunning = true;
         Log.i(LOG_TAG, "Streaming thread running");
+        encoderThread.start();
 
         // initialization of the TCP connection
         try {
-            tcpSocket = new Socket();
-            tcpSocket.setTcpNoDelay(true);
-            tcpSocket.connect(new InetSocketAddress(remoteIP, remotePort), 5 * 1000);
-            networkWriter = new DataOutputStream(tcpSocket.getOutputStream());
-            networkReader = new DataInputStream(tcpSocket.getInputStream());
+            if (transportConnection != null) {
+                frameWriter = new FrameWriter(transportConnection, frameBufferPool);
+            } else {
+                connection = new ServerConnection(remoteIP, remotePort, preconnectedSocket, 0, true);
+                networkWriter = connection.getWriter();
+                networkReader = connection.getReader();
+                frameWriter = new FrameWriter(connection.getChannel(), networkWriter, frameBufferPool);
+            }
 //          networkReceiver = new VideoControlThread(networkReader, this.networkHandler, this.tokenController);
 //          networkReceiver.start();
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error in initializing network socket: " + e);
             this.notifyError(e.getMessage());
             this.isRunning = false;
+            encoderThread.close();
             return;
         }
 
         while (this.isRunning) {
             try {
-                // check token
-                if (this.tokenController.getCurrentToken() <= 0) {
-                    // this shouldn't happen since getCurrentToken will block until there is token
-                    Log.w(LOG_TAG, "no token available"); 
-                    continue;
-                }
-
                 /*
                  * Stream data to the server.
                  */
-                // get data in the frame buffer
-                byte[] data = null;
-                long dataTime = 0;
+                // get the latest encoded frame, while the encoder may already work on the next one;
+                // the encoder has already taken a token for it
+                EncodedFrame frame = encodedFrames.take();
+                if (frame == null) { // stopped
+                    break;
+                }
+                long tTaken = System.currentTimeMillis();
+                pipelineStats.record(PipelineStats.STAGE_SEND_WAIT, tTaken - frame.encodedTime);
+                // as before the pipeline, the latency log gets the time the frame is picked up for
+                // sending, and a compressed time only in experiment mode
+                long dataTime = tTaken;
                 long compressedTime = 0;
-                long sendingFrameID = 0;
-                synchronized(frameLock){
-                    while (this.frameBuffer == null){
-                        try {
-                            frameLock.wait();
-                        } catch (InterruptedException e) {}
-                    }
-                    data = this.frameBuffer;
-                    dataTime = System.currentTimeMillis();
-
-                    if (Const.IS_EXPERIMENT) { // compress pre-loaded file in experiment mode
-                        long tStartCompressing = System.currentTimeMillis();
-                        ByteArrayOutputStream bufferNoUse = new ByteArrayOutputStream();
-                        imageBitmapsCompress[indexImageFileCompress].compress(Bitmap.CompressFormat.JPEG, 67, bufferNoUse);
-                        Log.v(LOG_TAG, "Compressing time: " + (System.currentTimeMillis() - tStartCompressing));
-                        indexImageFileCompress = (indexImageFileCompress + 1) % imageFileCompressLength;
-                        compressedTime = System.currentTimeMillis();
-                    }
-
-                    sendingFrameID = this.frameID;
-                    Log.v(LOG_TAG, "sending:" + sendingFrameID);
-                    this.frameBuffer = null;
+
+                if (Const.IS_EXPERIMENT) { // compress pre-loaded file in experiment mode
+                    long tStartCompressing = System.currentTimeMillis();
+                    ByteArrayOutputStream bufferNoUse = new ByteArrayOutputStream();
+                    imageBitmapsCompress[indexImageFileCompress].compress(Bitmap.CompressFormat.JPEG, 67, bufferNoUse);
+                    Log.v(LOG_TAG, "Compressing time: " + (System.currentTimeMillis() - tStartCompressing));
+                    indexImageFileCompress = (indexImageFileCompress + 1) % imageFileCompressLength;
+                    compressedTime = System.currentTimeMillis();
                 }
 
-                // make it as a single packet
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos);
-                byte[] header = ("{\"" + NetworkProtocol.HEADER_MESSAGE_FRAME_ID + "\":" + sendingFrameID + "}").getBytes();
-                dos.writeInt(header.length);
-                dos.write(header);
-                dos.writeInt(data.length);
-                dos.write(data);
+                long sendingFrameID = frame.frameID;
+                Log.v(LOG_TAG, "sending:" + sendingFrameID);
 
-                // send packet and consume tokens
+                // send header and JPEG in one gathering write, straight from the encoder's buffer,
+                // which goes back to the pool once written
                 this.tokenController.logSentPacket(sendingFrameID, dataTime, compressedTime);
-                this.tokenController.decreaseToken();
-                networkWriter.write(baos.toByteArray());
-                networkWriter.flush();
-                
+                frameWriter.write(sendingFrameID, frame.data);
+                pipelineStats.record(PipelineStats.STAGE_SEND, System.currentTimeMillis() - tTaken);
+
             } catch (IOException e) {
                 Log.e(LOG_TAG, "Error in sending packet: " + e);
                 this.notifyError(e.getMessage());
                 this.isRunning = false;
+                encoderThread.close();
                 return;
             }
         }
@@ -243,54 +255,57 @@ public class VideoStreamingThread extends Thread {
     }
 
     /**
-     * Called whenever a new frame is generated
-     * Puts the new frame into the @frameBuffer
+     * Returns frame buffers to the camera once they have been encoded or dropped
+     */
+    public void setBufferRecycler(BufferRecycler bufferRecycler) {
+        this.bufferRecycler = bufferRecycler;
+        encoderThread.setBufferRecycler(bufferRecycler);
+    }
+
+    /**
+     * Called whenever a new frame is generated, on the camera callback
+     * Hands the new frame to the encoder thread, replacing a frame it has not started on yet
      */
-    public void push(byte[] frame, Parameters parameters) {
+    public void push(byte[] frame, int format, int width, int height) {
         Log.v(LOG_TAG, "push");
-        
+        long tStart = System.currentTimeMillis();
+
         if (!Const.LOAD_IMAGES){ // use real-time captured images
-            synchronized (frameLock) {
-                Size cameraImageSize = parameters.getPreviewSize();
-                YuvImage image = new YuvImage(frame, parameters.getPreviewFormat(), cameraImageSize.width,
-                        cameraImageSize.height, null);
-                ByteArrayOutputStream tmpBuffer = new ByteArrayOutputStream();
-                // chooses quality 67 and it roughly matches quality 5 in avconv
-                image.compressToJpeg(new Rect(0, 0, image.getWidth(), image.getHeight()), 67, tmpBuffer);
-                this.frameBuffer = tmpBuffer.toByteArray();
-                this.frameID++;
-                frameLock.notify();
+            encoderThread.push(new RawFrame(++this.frameID, frame, format, width, height, tStart));
+        } else { // use pre-captured images, which are already JPEG
+            if (bufferRecycler != null) {
+                bufferRecycler.recycle(frame);
             }
-        } else { // use pre-captured images
             try {
-                long dataTime = System.currentTimeMillis();
                 int dataSize = (int) this.imageFiles[indexImageFile].length();
                 FileInputStream fi = new FileInputStream(this.imageFiles[indexImageFile]);
                 byte[] buffer = new byte[dataSize];
                 fi.read(buffer, 0, dataSize);
-                synchronized (frameLock) {
-                    this.frameBuffer = buffer;
-                    this.frameID++;
-                    frameLock.notify();
-                }
+                // passes the encoder unchanged, which only lets it through with a token
+                encoderThread.push(new RawFrame(++this.frameID, buffer, ImageFormat.JPEG, 0, 0, tStart));
                 indexImageFile = (indexImageFile + 1) % this.imageFiles.length;
             } catch (FileNotFoundException e) {
             } catch (IOException e) {
             }
         }
+        pipelineStats.record(PipelineStats.STAGE_CAPTURE, System.currentTimeMillis() - tStart);
+    }
+
+    public PipelineStats getPipelineStats() {
+        return pipelineStats;
     }
 
     public void stopStreaming() {
         isRunning = false;
-        if (tcpSocket != null) {
-            try {
-                tcpSocket.close();
-            } catch (IOException e) {}
+        encoderThread.close();
+        EncodedFrame remaining = encodedFrames.close();
+        if (remaining != null) {
+            frameBufferPool.release(remaining.data);
         }
-        if (networkWriter != null) {
-            try {
-                networkWriter.close();
-            } catch (IOException e) {}
+        Log.i(LOG_TAG, "Pipeline stats: " + pipelineStats + ", frame buffers allocated: "
+                + frameBufferPool.getAllocationCount());
+        if (connection != null) {
+            connection.close();
         }
         if (networkReceiver != null) {
             networkReceiver.close();
@@ -0,0 +1,91 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.gabriel;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PreviewBufferPoolTest {
+    @Test
+    public void allocate_givesBuffersOnlyOncePerSize() {
+        PreviewBufferPool pool = new PreviewBufferPool(3);
+        List<byte[]> buffers = pool.allocate(100);
+        assertEquals(3, buffers.size());
+        for (byte[] buffer : buffers) {
+            assertEquals(100, buffer.length);
+        }
+        assertTrue(pool.allocate(100).isEmpty());
+        assertEquals(3, pool.getAllocationCount());
+    }
+
+    @Test
+    public void release_returnsBufferForReuse() {
+        PreviewBufferPool pool = new PreviewBufferPool(2);
+        byte[] buffer = pool.allocate(100).get(0);
+        assertNull(pool.pollReleased());
+
+        pool.release(buffer);
+        assertSame(buffer, pool.pollReleased());
+        assertNull(pool.pollReleased());
+
+        pool.release(null);
+        assertNull(pool.pollReleased());
+    }
+
+    @Test
+    public void sizeChange_reallocatesAndDropsOldBuffers() {
+        PreviewBufferPool pool = new PreviewBufferPool(2);
+        List<byte[]> oldBuffers = pool.allocate(100);
+        pool.release(oldBuffers.get(0));
+
+        List<byte[]> newBuffers = pool.allocate(200);
+        assertEquals(2, newBuffers.size());
+        assertEquals(200, newBuffers.get(0).length);
+        assertEquals(4, pool.getAllocationCount());
+        // buffers of the old size are dropped, whether released before or after the change
+        assertNull(pool.pollReleased());
+        pool.release(oldBuffers.get(1));
+        assertNull(pool.pollReleased());
+
+        pool.release(newBuffers.get(0));
+        assertSame(newBuffers.get(0), pool.pollReleased());
+    }
+
+    @Test
+    public void clear_reallocatesSameSize() {
+        PreviewBufferPool pool = new PreviewBufferPool(2);
+        byte[] buffer = pool.allocate(100).get(0);
+        pool.clear();
+        pool.release(buffer);
+        assertNull(pool.pollReleased());
+        assertEquals(2, pool.allocate(100).size());
+    }
+
+    @Test
+    public void allocationsPerFrame_dropsInSteadyState() {
+        PreviewBufferPool pool = new PreviewBufferPool(2);
+        assertEquals(0, pool.getAllocationsPerFrame(), 0);
+        pool.allocate(100);
+        for (int i = 0; i < 100; i++) {
+            pool.countFrame();
+            pool.release(pool.pollReleased());
+        }
+        assertEquals(100, pool.getFrameCount());
+        assertEquals(0.02, pool.getAllocationsPerFrame(), 1e-9);
+    }
+}
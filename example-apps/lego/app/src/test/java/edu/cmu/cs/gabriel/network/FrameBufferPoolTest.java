@@ -0,0 +1,50 @@
+// Copyright 2018 Carnegie Mellon University
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package edu.cmu.cs.gabriel.network;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import edu.cmu.cs.gabriel.network.FrameBufferPool.FrameBuffer;
+
+import static org.junit.Assert.*;
+
+public class FrameBufferPoolTest {
+    @Test
+    public void release_reusesBuffer() {
+        FrameBufferPool pool = new FrameBufferPool(16);
+        FrameBuffer buffer = pool.acquire();
+        buffer.write(1);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire());
+        assertEquals(0, buffer.size());
+        assertEquals(1, pool.getAllocationCount());
+    }
+
+    @Test
+    public void wrap_sendsImageWithoutCopying() {
+        FrameBufferPool pool = new FrameBufferPool(16);
+        byte[] image = new byte[]{1, 2, 3};
+        FrameBuffer buffer = pool.wrap(image);
+        ByteBuffer view = buffer.asByteBuffer();
+        assertSame(image, view.array());
+        assertEquals(3, view.remaining());
+
+        // wrapped images are never handed out again
+        pool.release(buffer);
+        assertTrue(pool.acquire() != buffer);
+    }
+}